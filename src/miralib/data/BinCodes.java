@@ -0,0 +1,75 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import miralib.math.Numbers;
+
+/**
+ * Bin index of each (normalized) value of a slice for a given number of bins,
+ * stored in bytes or shorts when the bins fit in them. The histogram-based
+ * estimators only need to count the codes, instead of dividing each value by
+ * the bin size every time they are calculated.
+ *
+ */
+
+public class BinCodes {
+  final public int nbins;
+  final public int size;
+  protected byte[] bytes;
+  protected short[] shorts;
+  protected int[] ints;
+
+  protected BinCodes(int nbins, int size) {
+    this.nbins = nbins;
+    this.size = size;
+    if (nbins <= 256) {
+      bytes = new byte[size];
+    } else if (nbins <= 65536) {
+      shorts = new short[size];
+    } else {
+      ints = new int[size];
+    }
+  }
+
+  /**
+   * Calculates the codes of the first size values, the bins are of size
+   * 1/nbins and the values outside [0, 1] go to the first or last bin.
+   */
+  static public BinCodes calculate(double[] values, int size, int nbins) {
+    BinCodes codes = new BinCodes(nbins, size);
+    float sbin = 1.0f / nbins;
+    for (int i = 0; i < size; i++) {
+      codes.set(i, Numbers.constrain((int)(values[i] / sbin), 0, nbins - 1));
+    }
+    return codes;
+  }
+
+  public int get(int i) {
+    if (bytes != null) return bytes[i] & 0xFF;
+    if (shorts != null) return shorts[i] & 0xFFFF;
+    return ints[i];
+  }
+
+  /**
+   * Returns the codes in the order given by the permutation.
+   */
+  public BinCodes permute(int[] perm) {
+    BinCodes codes = new BinCodes(nbins, perm.length);
+    for (int n = 0; n < perm.length; n++) {
+      codes.set(n, get(perm[n]));
+    }
+    return codes;
+  }
+
+  public long byteSize() {
+    if (bytes != null) return bytes.length;
+    if (shorts != null) return 2L * shorts.length;
+    return 4L * ints.length;
+  }
+
+  protected void set(int i, int code) {
+    if (bytes != null) bytes[i] = (byte)code;
+    else if (shorts != null) shorts[i] = (short)code;
+    else ints[i] = code;
+  }
+}
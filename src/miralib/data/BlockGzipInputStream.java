@@ -0,0 +1,261 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream for block-gzipped (BGZF) files, which are concatenated gzip
+ * members of at most 64KB, each one storing its compressed size in the extra
+ * field of the header. This allows to find the blocks without inflating them,
+ * so they are read sequentially and inflated concurrently in a pool. The
+ * stream returns the inflated blocks in their original order.
+ *
+ */
+
+public class BlockGzipInputStream extends InputStream {
+  final static protected int HEADER_SIZE = 12;
+  final static protected int TRAILER_SIZE = 8;
+  final static protected int FEXTRA = 4;
+  // Compressed bytes that are inflated by each task
+  final static protected int BATCH_SIZE = 1024 * 1024;
+
+  protected InputStream input;
+  protected ForkJoinPool pool;
+  protected LinkedList<Future<byte[]>> pending;
+  protected int maxPending;
+  protected boolean eof;
+
+  protected byte[] current;
+  protected int pos;
+
+  public BlockGzipInputStream(InputStream input) {
+    this.input = input;
+    int proc = Runtime.getRuntime().availableProcessors();
+    pool = new ForkJoinPool(Math.max(1, proc));
+    pending = new LinkedList<Future<byte[]>>();
+    maxPending = 2 * Math.max(1, proc);
+    current = new byte[0];
+  }
+
+  /**
+   * Checks if the file starts with a gzip header containing the BGZF extra
+   * subfield.
+   */
+  static public boolean isBlockGzip(File file) {
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      byte[] header = new byte[HEADER_SIZE];
+      readFully(in, header, 0, header.length);
+      int xlen = checkHeader(header);
+      if (xlen < 0) return false;
+      byte[] extra = new byte[xlen];
+      readFully(in, extra, 0, xlen);
+      return 0 <= blockSize(extra);
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) { }
+      }
+    }
+  }
+
+  public int read() throws IOException {
+    if (!fill()) return -1;
+    return current[pos++] & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (!fill()) return -1;
+    int n = Math.min(len, current.length - pos);
+    System.arraycopy(current, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  public int available() {
+    return current.length - pos;
+  }
+
+  public void close() throws IOException {
+    for (Future<byte[]> task: pending) task.cancel(true);
+    pending.clear();
+    pool.shutdown();
+    input.close();
+  }
+
+  /**
+   * Makes sure that there are bytes available in the current block, returns
+   * false if the end of the stream was reached.
+   */
+  protected boolean fill() throws IOException {
+    while (pos == current.length) {
+      while (!eof && pending.size() < maxPending) submitBatch();
+      if (pending.isEmpty()) return false;
+      try {
+        current = pending.removeFirst().get();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+      pos = 0;
+    }
+    return true;
+  }
+
+  /**
+   * Reads the compressed blocks that fit in a batch, and submits them to be
+   * inflated.
+   */
+  protected void submitBatch() throws IOException {
+    final ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+    int size = 0;
+    while (size < BATCH_SIZE) {
+      byte[] block = readBlock();
+      if (block == null) {
+        eof = true;
+        break;
+      }
+      blocks.add(block);
+      size += block.length;
+    }
+    if (blocks.isEmpty()) return;
+    pending.add(pool.submit(new Callable<byte[]>() {
+      public byte[] call() throws IOException {
+        return inflate(blocks);
+      }
+    }));
+  }
+
+  /**
+   * Reads the next block, returning the deflated data followed by the gzip
+   * trailer, or null at the end of the input.
+   */
+  protected byte[] readBlock() throws IOException {
+    byte[] header = new byte[HEADER_SIZE];
+    int n = read(input, header, 0, header.length);
+    if (n == 0) return null;
+    if (n < header.length) throw new EOFException("Truncated BGZF block");
+    int xlen = checkHeader(header);
+    if (xlen < 0) throw new IOException("Not a BGZF block");
+    byte[] extra = new byte[xlen];
+    readFully(input, extra, 0, xlen);
+    int bsize = blockSize(extra);
+    if (bsize < 0) throw new IOException("Not a BGZF block");
+    int length = bsize + 1 - HEADER_SIZE - xlen;
+    if (length < TRAILER_SIZE) throw new IOException("Invalid BGZF block size");
+    byte[] block = new byte[length];
+    readFully(input, block, 0, length);
+    return block;
+  }
+
+  static protected byte[] inflate(ArrayList<byte[]> blocks) throws IOException {
+    int total = 0;
+    for (byte[] block: blocks) total += isize(block);
+    byte[] output = new byte[total];
+    Inflater inflater = new Inflater(true);
+    CRC32 crc = new CRC32();
+    try {
+      int offset = 0;
+      for (byte[] block: blocks) {
+        int isize = isize(block);
+        inflater.reset();
+        inflater.setInput(block, 0, block.length - TRAILER_SIZE);
+        int n = 0;
+        while (n < isize && !inflater.finished()) {
+          int count = inflater.inflate(output, offset + n, isize - n);
+          if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          n += count;
+        }
+        crc.reset();
+        crc.update(output, offset, n);
+        if (n != isize || (int)crc.getValue() != intLE(block, block.length - TRAILER_SIZE)) {
+          throw new IOException("Corrupt BGZF block");
+        }
+        offset += isize;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+    return output;
+  }
+
+  /**
+   * Returns the length of the extra field, or -1 if the header is not a gzip
+   * header with an extra field.
+   */
+  static protected int checkHeader(byte[] header) {
+    if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 ||
+        header[2] != 8 || (header[3] & FEXTRA) == 0) return -1;
+    return shortLE(header, 10);
+  }
+
+  /**
+   * Finds the BC subfield in the extra field, returning the total size of the
+   * block minus 1, or -1 if there is no such subfield.
+   */
+  static protected int blockSize(byte[] extra) {
+    int i = 0;
+    while (i + 4 <= extra.length) {
+      int slen = shortLE(extra, i + 2);
+      if (extra[i] == 'B' && extra[i + 1] == 'C' && slen == 2 &&
+          i + 6 <= extra.length) {
+        return shortLE(extra, i + 4);
+      }
+      i += 4 + slen;
+    }
+    return -1;
+  }
+
+  static protected int isize(byte[] block) {
+    return intLE(block, block.length - 4);
+  }
+
+  static protected int shortLE(byte[] bytes, int i) {
+    return (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8;
+  }
+
+  static protected int intLE(byte[] bytes, int i) {
+    return (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8 |
+           (bytes[i + 2] & 0xFF) << 16 | (bytes[i + 3] & 0xFF) << 24;
+  }
+
+  static protected int read(InputStream in, byte[] b, int off, int len)
+    throws IOException {
+    int n = 0;
+    while (n < len) {
+      int count = in.read(b, off + n, len - n);
+      if (count == -1) break;
+      n += count;
+    }
+    return n;
+  }
+
+  static protected void readFully(InputStream in, byte[] b, int off, int len)
+    throws IOException {
+    if (read(in, b, off, len) < len) throw new EOFException("Truncated BGZF block");
+  }
+}
@@ -0,0 +1,250 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+
+import processing.data.Table;
+
+/**
+ * Data column backed by a byte buffer instead of a Java array. The buffer can
+ * be a region of a memory-mapped file, so the values are paged in by the OS on
+ * demand and don't take space in the heap.
+ *
+ */
+
+abstract public class BufferColumn extends DataColumn {
+  final static public ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+  final static protected Charset UTF8 = Charset.forName("UTF-8");
+
+  protected ByteBuffer buffer;
+
+  public BufferColumn(int type, int size, ByteBuffer buffer) {
+    super(type, size);
+    this.buffer = buffer;
+    buffer.order(ORDER);
+  }
+
+  static public BufferColumn create(ByteBuffer buffer, int type, int size,
+                                    String[] categories, String missing) {
+    if (type == Table.INT) {
+      return new IntColumn(buffer, size);
+    } else if (type == Table.LONG) {
+      return new LongColumn(buffer, size);
+    } else if (type == Table.FLOAT) {
+      return new FloatColumn(buffer, size);
+    } else if (type == Table.DOUBLE) {
+      return new DoubleColumn(buffer, size);
+    } else if (type == Table.CATEGORY) {
+      return new CategoryColumn(buffer, size, categories, missing);
+    } else {
+      return new StringColumn(buffer, size);
+    }
+  }
+
+  /**
+   * Copies the column into a direct buffer allocated outside of the heap. The
+   * column is returned as is if it is already stored in a buffer, or if it is
+   * too large for a single buffer.
+   */
+  static public DataColumn allocateDirect(DataColumn column, String missing) {
+    if (column instanceof BufferColumn) return column;
+    if (column instanceof DataColumn.DateColumn) {
+      DataColumn.DateColumn dates = (DataColumn.DateColumn)column;
+      return new DataColumn.DateColumn(allocateDirect(dates.source, missing), 
+                                       allocateDirect(dates.millis, missing));
+    }
+    long length = byteSize(column);
+    if (Integer.MAX_VALUE < length) return column;
+    ByteBuffer buffer = ByteBuffer.allocateDirect((int)length);
+    write(column, buffer);
+    buffer.rewind();
+    String[] categories = null;
+    if (column.type() == Table.CATEGORY) {
+      categories = new String[column.getCategoryCount()];
+      for (int i = 0; i < categories.length; i++) {
+        categories[i] = column.getCategory(i);
+      }
+    }
+    return create(buffer, column.type(), column.size(), categories, missing);
+  }
+  
+  /**
+   * Number of bytes needed to store the column in a buffer.
+   */
+  static public long byteSize(DataColumn column) {
+    int type = column.type();
+    long size = column.size();
+    if (type == Table.INT || type == Table.FLOAT || type == Table.CATEGORY) {
+      return 4 * size;
+    } else if (type == Table.LONG || type == Table.DOUBLE) {
+      return 8 * size;
+    } else {
+      // Start offsets and lengths of the strings, followed by the UTF-8 bytes
+      long bytes = 8 * size;
+      for (int r = 0; r < column.size(); r++) {
+        String value = column.getString(r);
+        if (value != null) bytes += value.getBytes(UTF8).length;
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * Writes the values of the column into the buffer, starting at its current
+   * position.
+   */
+  static public void write(DataColumn column, ByteBuffer buffer) {
+    buffer.order(ORDER);
+    int type = column.type();
+    int size = column.size();
+    if (type == Table.INT || type == Table.CATEGORY) {
+      for (int r = 0; r < size; r++) buffer.putInt(column.getInt(r));
+    } else if (type == Table.LONG) {
+      for (int r = 0; r < size; r++) buffer.putLong(column.getLong(r));
+    } else if (type == Table.FLOAT) {
+      for (int r = 0; r < size; r++) buffer.putFloat(column.getFloat(r));
+    } else if (type == Table.DOUBLE) {
+      for (int r = 0; r < size; r++) buffer.putDouble(column.getDouble(r));
+    } else {
+      int start = buffer.position();
+      int offset = 8 * size;
+      for (int r = 0; r < size; r++) {
+        String value = column.getString(r);
+        int len = value == null ? -1 : value.getBytes(UTF8).length;
+        buffer.putInt(start + 4 * r, offset);
+        buffer.putInt(start + 4 * (size + r), len);
+        if (0 < len) {
+          buffer.position(start + offset);
+          buffer.put(value.getBytes(UTF8));
+          offset += len;
+        }
+      }
+      buffer.position(start + offset);
+    }
+  }
+
+  static public class IntColumn extends BufferColumn {
+    protected IntBuffer values;
+
+    public IntColumn(ByteBuffer buffer, int size) {
+      super(Table.INT, size, buffer);
+      values = buffer.asIntBuffer();
+    }
+
+    public int getInt(int row) {
+      return values.get(row);
+    }
+
+    public String getString(int row) {
+      return String.valueOf(values.get(row));
+    }
+  }
+
+  static public class LongColumn extends BufferColumn {
+    protected LongBuffer values;
+
+    public LongColumn(ByteBuffer buffer, int size) {
+      super(Table.LONG, size, buffer);
+      values = buffer.asLongBuffer();
+    }
+
+    public long getLong(int row) {
+      return values.get(row);
+    }
+
+    public String getString(int row) {
+      return String.valueOf(values.get(row));
+    }
+  }
+
+  static public class FloatColumn extends BufferColumn {
+    protected FloatBuffer values;
+
+    public FloatColumn(ByteBuffer buffer, int size) {
+      super(Table.FLOAT, size, buffer);
+      values = buffer.asFloatBuffer();
+    }
+
+    public float getFloat(int row) {
+      return values.get(row);
+    }
+
+    public String getString(int row) {
+      return String.valueOf(values.get(row));
+    }
+  }
+
+  static public class DoubleColumn extends BufferColumn {
+    protected DoubleBuffer values;
+
+    public DoubleColumn(ByteBuffer buffer, int size) {
+      super(Table.DOUBLE, size, buffer);
+      values = buffer.asDoubleBuffer();
+    }
+
+    public double getDouble(int row) {
+      return values.get(row);
+    }
+
+    public String getString(int row) {
+      return String.valueOf(values.get(row));
+    }
+  }
+
+  static public class CategoryColumn extends BufferColumn {
+    protected IntBuffer codes;
+    protected String[] categories;
+    protected String missing;
+
+    public CategoryColumn(ByteBuffer buffer, int size, String[] categories,
+                          String missing) {
+      super(Table.CATEGORY, size, buffer);
+      this.codes = buffer.asIntBuffer();
+      this.categories = categories;
+      this.missing = missing;
+    }
+
+    public int getInt(int row) {
+      return codes.get(row);
+    }
+
+    public String getString(int row) {
+      int code = codes.get(row);
+      if (code < 0 || categories.length <= code) return missing;
+      return categories[code];
+    }
+
+    public int getCategoryCount() {
+      return categories.length;
+    }
+
+    public String getCategory(int code) {
+      return categories[code];
+    }
+  }
+
+  static public class StringColumn extends BufferColumn {
+    public StringColumn(ByteBuffer buffer, int size) {
+      super(Table.STRING, size, buffer);
+    }
+
+    public String getString(int row) {
+      int len = buffer.getInt(4 * (size + row));
+      if (len < 0) return null;
+      if (len == 0) return "";
+      int offset = buffer.getInt(4 * row);
+      byte[] bytes = new byte[len];
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset);
+      view.get(bytes);
+      return new String(bytes, UTF8);
+    }
+  }
+}
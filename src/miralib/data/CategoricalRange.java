@@ -4,9 +4,12 @@ package miralib.data;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import miralib.math.Numbers;
+import processing.data.Table;
 import processing.data.TableRow;
 
 /**
@@ -17,6 +20,11 @@ import processing.data.TableRow;
 public class CategoricalRange extends Range {
   protected ArrayList<String> catset;
   
+  // Indices of the categories by their codes in the dictionary of the column,
+  // rebuilt when needed after the set of categories changes.
+  protected volatile CodeIndex codeIndex;
+  protected volatile RelativeIndex relIndex;
+  
   public CategoricalRange(Variable var) {
     super(var);
     catset = new ArrayList<String>();
@@ -25,6 +33,7 @@ public class CategoricalRange extends Range {
   public CategoricalRange(CategoricalRange that) {
     super(that);    
     catset = new ArrayList<String>(that.catset);
+    codeIndex = that.codeIndex;
   }
   
   public void set(double min, double max, boolean normalized) { }
@@ -47,6 +56,7 @@ public class CategoricalRange extends Range {
         catset.clear();
         catset.addAll(values);        
       }
+      changed();
     }
   }
   
@@ -67,17 +77,33 @@ public class CategoricalRange extends Range {
     set(valarray); 
   }
   
+  public void set(ColumnStats stats) {
+    catset.clear();
+    catset.addAll(Arrays.asList(stats.categories));
+    changed();
+  }
+  
   public void reset() {
     catset.clear();
+    changed();
   }
   
   public void update(TableRow row) {    
     String value = row.getString(var.index);
     if (catset.indexOf(value) == -1) {   
       catset.add(value);
+      changed();
     }
   }  
   
+  public void update(int row) {    
+    String value = var.data.getString(row);
+    if (catset.indexOf(value) == -1) {   
+      catset.add(value);
+      changed();
+    }
+  }
+  
   public double getMin() {
     return 0;
   }
@@ -94,6 +120,21 @@ public class CategoricalRange extends Range {
     return catset.indexOf(value);
   }
   
+  /**
+   * Rank of the category with the given code in the dictionary of the column,
+   * or -1 if the category is not in the range. 
+   */
+  public int getRank(int code) {
+    return getCodeIndex().ranks[code];
+  }
+  
+  /**
+   * Same as getRank(String, Range), for the category with the given code.
+   */
+  public int getRank(int code, CategoricalRange supr) {
+    return getRelativeIndex(supr).ranks[code];
+  }
+  
   public int getRank(String value, Range supr) {
     if (catset.indexOf(value) == -1) return -1;
     int rank = 0;
@@ -115,6 +156,22 @@ public class CategoricalRange extends Range {
     return value != null && -1 < catset.indexOf(value);
   }
 
+  public boolean inside(int row) {
+    CodeIndex index = getCodeIndex();
+    if (index != null) {
+      int code = var.data.getInt(row);
+      if (0 <= code && code < index.ranks.length) return index.members.get(code);
+    }
+    String value = var.data.getString(row);
+    return value != null && -1 < catset.indexOf(value);
+  }
+
+  protected int overlap(ZoneMap zones, int zone) {
+    CodeIndex index = getCodeIndex();
+    if (index == null) return ZoneMap.SOME;
+    return zones.overlap(zone, index.members);
+  }
+  
   public double snap(double value) {
     return constrain((int)Math.round(value));
   }
@@ -169,6 +226,85 @@ public class CategoricalRange extends Range {
     return false;
   }  
   
+  protected void changed() {
+    codeIndex = null;
+    relIndex = null;
+  }
+  
+  protected CodeIndex getCodeIndex() {
+    CodeIndex index = codeIndex;
+    if (index == null && var.data != null && 
+        var.data.type() == Table.CATEGORY) {
+      index = new CodeIndex(var.data, catset);
+      codeIndex = index;
+    }
+    return index;
+  }
+  
+  protected RelativeIndex getRelativeIndex(CategoricalRange supr) {
+    RelativeIndex rel = relIndex;
+    CodeIndex sindex = supr.getCodeIndex();
+    if (rel == null || rel.supr != supr || rel.sindex != sindex) {
+      rel = new RelativeIndex(var.data, this, supr, sindex);
+      relIndex = rel;
+    }
+    return rel;
+  }
+  
+  /**
+   * Bitset of the codes of the categories in the range, and rank of each code
+   * in the list of categories.
+   */
+  static protected class CodeIndex {
+    final BitSet members;
+    final int[] ranks;
+    
+    CodeIndex(DataColumn column, ArrayList<String> catset) {
+      int count = column.getCategoryCount();
+      members = new BitSet(count);
+      ranks = new int[count];
+      for (int code = 0; code < count; code++) {
+        String cat = column.getCategory(code);
+        ranks[code] = cat == null ? -1 : catset.indexOf(cat);
+        if (-1 < ranks[code]) members.set(code);
+      }
+    }
+  }
+  
+  /**
+   * Ranks of the codes relative to the order of the categories in another 
+   * range, as given by getRank(String, Range).
+   */
+  static protected class RelativeIndex {
+    final CategoricalRange supr;
+    final CodeIndex sindex;
+    final int[] ranks;
+    
+    RelativeIndex(DataColumn column, CategoricalRange range, 
+                  CategoricalRange supr, CodeIndex sindex) {
+      this.supr = supr;
+      this.sindex = sindex;
+      HashSet<String> included = new HashSet<String>(range.catset);
+      HashMap<String, Integer> first = new HashMap<String, Integer>();
+      int rank = 0;
+      for (String cat: supr.catset) {
+        if (!first.containsKey(cat)) first.put(cat, rank);
+        if (included.contains(cat)) rank++;
+      }
+      int count = column.getCategoryCount();
+      ranks = new int[count];
+      for (int code = 0; code < count; code++) {
+        String cat = column.getCategory(code);
+        if (cat == null || !included.contains(cat)) {
+          ranks[code] = -1;
+        } else {
+          Integer r = first.get(cat);
+          ranks[code] = r == null ? rank : r;
+        }
+      }
+    }
+  }
+  
   public String toString() {
     String str = "";
     for (String value: catset) {
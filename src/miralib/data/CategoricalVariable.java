@@ -56,6 +56,13 @@ public class CategoricalVariable extends Variable {
     }
   }  
   
+  public void initRange(ColumnStats stats) {
+    super.initRange(stats);
+    for (String cat: range.getValues()) {
+      aliases.put(cat, cat);
+    }
+  }  
+  
   public Range createRange(double val0, double val1) {
     Range range = new CategoricalRange(this);    
     range.set(val0, val1, false);
@@ -105,6 +112,11 @@ public class CategoricalVariable extends Variable {
     return value == null || value.equals(missingString);
   }
 
+  public boolean missing(int row) {
+    String value = data.getString(row);
+    return value == null || value.equals(missingString);
+  }
+
   public double getValue(String str, boolean normalized) {
     int rank = range.getRank(str);
     if (normalized) {
@@ -130,12 +142,44 @@ public class CategoricalVariable extends Variable {
     }
   } 
   
+  public double getValue(int row, Range sel, boolean normalized) {    
+    int rank;
+    int code = data.type() == Table.CATEGORY ? data.getInt(row) : -1;
+    if (0 <= code && code < data.getCategoryCount()) {
+      // Going straight from the code of the row to its rank
+      if (data.getCategory(code) == null) return -1;
+      CategoricalRange crange = (CategoricalRange)range;
+      rank = sel == null ? crange.getRank(code) : 
+                           ((CategoricalRange)sel).getRank(code, crange);
+    } else {
+      String value = data.getString(row);
+      if (value == null) return -1;
+      rank = sel == null ? range.getRank(value) : sel.getRank(value, range);
+    }
+        
+    if (normalized) {
+      if (sel == null) {
+        return range.normalize(rank);              
+      } else {
+        return sel.normalize(rank);  
+      }
+    } else {
+      return rank;
+    }
+  }
+  
   public String formatValue(TableRow row) {
     String value = row.getString(index);    
     String alias = aliases.get(value);
     return alias == null ? "missing" : alias;
   }   
   
+  public String formatValue(int row) {
+    String value = data.getString(row);    
+    String alias = aliases.get(value);
+    return alias == null ? "missing" : alias;
+  }
+  
   public String formatValue(double value, boolean normalized) {
     int rank = normalized ? (int)Math.round(range.denormalize(value)) : (int)Math.round(value);
     if (0 <= rank && rank < range.getCount()) {
@@ -206,4 +250,10 @@ public class CategoricalVariable extends Variable {
     Log.error(msg, new RuntimeException(msg));
     return 0;
   }
+  
+  protected double getWeightImpl(int row) {
+    String msg = "Weight variable " + name + " (" + alias + ") is not numeric";
+    Log.error(msg, new RuntimeException(msg));
+    return 0;
+  }
 }
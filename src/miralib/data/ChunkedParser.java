@@ -0,0 +1,547 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import miralib.math.NumberScanner;
+import processing.data.Table;
+
+/**
+ * Parser for CSV/TSV data that splits the input into chunks of complete
+ * records, and parses the chunks concurrently into typed column buffers. The
+ * input is read sequentially on the calling thread, while the chunks already
+ * read are parsed in the pool. The chunks are then stitched together in order.
+ * Only a selection of the columns can be parsed, the fields of the remaining
+ * columns are skipped, keeping just a small sample of their values.
+ *
+ */
+
+public class ChunkedParser {
+  final static protected int CHUNK_SIZE = 8 * 1024 * 1024;
+  final static protected Charset UTF8 = Charset.forName("UTF-8");
+  final static protected int SAMPLE_SIZE = 10;
+
+  protected boolean header;
+  protected boolean tsv;
+  protected int[] types;
+  protected String[] titles;
+  protected boolean[] selection;
+  protected Set<String> selectedTitles;
+
+  protected String missingString;
+  protected int missingInt;
+  protected long missingLong;
+  protected float missingFloat;
+  protected double missingDouble;
+  protected int missingCategory;
+
+  protected ArrayList<Chunk> chunks;
+  protected String[][] categories;
+
+  public ChunkedParser(MiraTable table, String options) {
+    String[] opts = DataSet.splitOptions(options == null ? "" : options);
+    for (String opt: opts) {
+      if (opt.equals("header")) header = true;
+      else if (opt.equals("tsv")) tsv = true;
+    }
+
+    types = new int[table.getColumnCount()];
+    for (int col = 0; col < types.length; col++) {
+      types[col] = table.getColumnType(col);
+      if (types[col] == MiraTable.DATE) types[col] = Table.STRING;
+    }
+
+    missingString = table.getMissingString();
+    missingInt = table.getMissingInt();
+    missingLong = table.getMissingLong();
+    missingFloat = table.getMissingFloat();
+    missingDouble = table.getMissingDouble();
+    missingCategory = table.getMissingCategory();
+  }
+
+  /**
+   * Only parses the columns where the selection is true.
+   */
+  public void select(boolean[] selection) {
+    this.selection = selection;
+  }
+  
+  /**
+   * Only parses the columns with the given titles, requires the input to have
+   * a header.
+   */
+  public void select(Set<String> titles) {
+    selectedTitles = titles;
+  }
+  
+  public boolean selected(int col) {
+    return selection == null || (col < selection.length && selection[col]);
+  }
+  
+  public void parse(InputStream input) throws IOException {
+    int proc = Runtime.getRuntime().availableProcessors();
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, proc));
+    ArrayList<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+    int maxPending = 2 * Math.max(1, proc);
+
+    try {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      int len = 0;
+      int scanned = 0;
+      boolean quoted = false;
+      boolean first = true;
+      boolean eof = false;
+      while (!eof) {
+        int n = input.read(buffer, len, buffer.length - len);
+        if (n == -1) {
+          eof = true;
+        } else {
+          len += n;
+          if (len < buffer.length) continue;
+        }
+
+        // Finding the end of the last complete record in the buffer
+        int end = -1;
+        for (int i = scanned; i < len; i++) {
+          byte b = buffer[i];
+          if (b == '"' && !tsv) quoted = !quoted;
+          else if (b == '\n' && !quoted) end = i + 1;
+        }
+        scanned = len;
+        if (eof) end = len;
+        if (end == -1) {
+          // Record larger than the buffer
+          buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+          continue;
+        }
+
+        int start = 0;
+        if (first) {
+          first = false;
+          if (3 <= end && (buffer[0] & 0xFF) == 0xEF &&
+              (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF) {
+            start = 3;
+          }
+          if (header) {
+            int hend = recordEnd(buffer, start, end);
+            titles = splitRecord(new String(buffer, start, hend - start, UTF8));
+            start = hend;
+            if (selectedTitles != null) {
+              selection = new boolean[titles.length];
+              for (int col = 0; col < titles.length; col++) {
+                selection[col] = selectedTitles.contains(titles[col]);
+              }
+            }
+          }
+          if (types.length == 0 && titles == null) {
+            // No types or header, taking the number of columns from the first
+            // record
+            int rend = recordEnd(buffer, start, end);
+            String line = new String(buffer, start, rend - start, UTF8);
+            types = new int[splitRecord(line).length];
+          }
+          if (types.length < getColumnCount()) {
+            types = Arrays.copyOf(types, getColumnCount());
+          }
+        }
+
+        if (start < end) {
+          byte[] bytes = Arrays.copyOfRange(buffer, start, end);
+          if (maxPending <= futures.size()) {
+            futures.get(futures.size() - maxPending).get();
+          }
+          futures.add(pool.submit(new Chunk(bytes)));
+        }
+
+        // Moving the remaining bytes to the beginning of the buffer. The quote
+        // state is kept, since these bytes were already scanned.
+        System.arraycopy(buffer, end, buffer, 0, len - end);
+        len -= end;
+        scanned = len;
+      }
+
+      chunks = new ArrayList<Chunk>();
+      for (Future<Chunk> future: futures) chunks.add(future.get());
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+    categories = new String[types.length][];
+  }
+
+  public String[] getColumnTitles() {
+    return titles;
+  }
+
+  public int getColumnCount() {
+    int count = types.length;
+    if (titles != null) count = Math.max(count, titles.length);
+    return count;
+  }
+
+  public int getRowCount() {
+    int count = 0;
+    for (Chunk chunk: chunks) count += chunk.rowCount;
+    return count;
+  }
+
+  /**
+   * Stitches the buffers of all the chunks into a single typed array for the
+   * column. Category codes are remapped to a common dictionary where
+   * categories are sorted by order of appearance in the data.
+   */
+  public Object getColumn(int col) {
+    if (!selected(col)) return null;
+    int type = types[col];
+    int rcount = getRowCount();
+    Object array;
+    if (type == Table.INT) array = new int[rcount];
+    else if (type == Table.LONG) array = new long[rcount];
+    else if (type == Table.FLOAT) array = new float[rcount];
+    else if (type == Table.DOUBLE) array = new double[rcount];
+    else if (type == Table.CATEGORY) array = new int[rcount];
+    else array = new String[rcount];
+
+    ArrayList<String> dict = new ArrayList<String>();
+    HashMap<String, Integer> codes = new HashMap<String, Integer>();
+    int offset = 0;
+    for (Chunk chunk: chunks) {
+      if (type == Table.CATEGORY) {
+        ArrayList<String> local = chunk.categories.get(col);
+        int[] remap = new int[local.size()];
+        for (int i = 0; i < remap.length; i++) {
+          String cat = local.get(i);
+          Integer code = codes.get(cat);
+          if (code == null) {
+            code = dict.size();
+            codes.put(cat, code);
+            dict.add(cat);
+          }
+          remap[i] = code;
+        }
+        int[] src = (int[])chunk.columns[col];
+        int[] dest = (int[])array;
+        for (int r = 0; r < chunk.rowCount; r++) {
+          int code = src[r];
+          dest[offset + r] = code < 0 ? missingCategory : remap[code];
+        }
+      } else {
+        System.arraycopy(chunk.columns[col], 0, array, offset, chunk.rowCount);
+      }
+      chunk.columns[col] = null;
+      offset += chunk.rowCount;
+    }
+    categories[col] = dict.toArray(new String[dict.size()]);
+    return array;
+  }
+
+  /**
+   * Dictionary of the category column, only available after the column was
+   * stitched with getColumn().
+   */
+  public String[] getCategories(int col) {
+    return categories[col];
+  }
+  
+  /**
+   * First non-missing values of a column that was not selected.
+   */
+  public String[] getSample(int col) {
+    ArrayList<String> values = new ArrayList<String>();
+    for (Chunk chunk: chunks) {
+      for (String value: chunk.samples.get(col)) {
+        if (values.size() == SAMPLE_SIZE) break;
+        values.add(value);
+      }
+    }
+    return values.toArray(new String[values.size()]);
+  }
+
+  protected int recordEnd(byte[] bytes, int from, int to) {
+    boolean quoted = false;
+    for (int i = from; i < to; i++) {
+      byte b = bytes[i];
+      if (b == '"' && !tsv) quoted = !quoted;
+      else if (b == '\n' && !quoted) return i + 1;
+    }
+    return to;
+  }
+
+  protected String[] splitRecord(String line) {
+    ArrayList<String> pieces = new ArrayList<String>();
+    RecordReader reader = new RecordReader(line);
+    while (true) {
+      pieces.add(reader.nextField());
+      if (reader.endOfRecord()) break;
+    }
+    return pieces.toArray(new String[pieces.size()]);
+  }
+
+  /**
+   * Splits a block of text into records and fields. Line breaks inside quoted
+   * fields are kept as part of the field. Unquoted fields are not copied out
+   * of the text, so they can be scanned as numbers in place.
+   */
+  protected class RecordReader {
+    String text;
+    int pos;
+    int length;
+    boolean endRecord;
+    StringBuilder builder;
+
+    // Current field
+    CharSequence field;
+    int fieldStart, fieldEnd;
+
+    RecordReader(String text) {
+      this.text = text;
+      length = text.length();
+      builder = new StringBuilder();
+    }
+
+    boolean hasMore() {
+      return pos < length;
+    }
+
+    boolean endOfRecord() {
+      return endRecord;
+    }
+
+    String nextField() {
+      next();
+      return value();
+    }
+
+    String value() {
+      if (field == text) return text.substring(fieldStart, fieldEnd);
+      return builder.toString();
+    }
+
+    void next() {
+      int start = pos;
+      int i = pos;
+      boolean simple = true;
+      char delim = tsv ? '\t' : ',';
+      while (i < length) {
+        char c = text.charAt(i);
+        if (c == delim || c == '\n') break;
+        if (c == '"' && !tsv) {
+          simple = false;
+          break;
+        }
+        i++;
+      }
+
+      if (simple) {
+        int stop = i;
+        if (start < stop && text.charAt(stop - 1) == '\r' &&
+            (i == length || text.charAt(i) == '\n')) stop--;
+        field = text;
+        fieldStart = start;
+        fieldEnd = stop;
+      } else {
+        // Quoted field, double quotes inside quotes are escaped quotes
+        builder.setLength(0);
+        builder.append(text, start, i);
+        boolean quoted = false;
+        while (i < length) {
+          char c = text.charAt(i);
+          if (quoted) {
+            if (c == '"') {
+              if (i + 1 < length && text.charAt(i + 1) == '"') {
+                builder.append('"');
+                i++;
+              } else {
+                quoted = false;
+              }
+            } else {
+              builder.append(c);
+            }
+          } else if (c == '"') {
+            quoted = true;
+          } else if (c == delim || c == '\n') {
+            break;
+          } else {
+            builder.append(c);
+          }
+          i++;
+        }
+        int blen = builder.length();
+        if (0 < blen && builder.charAt(blen - 1) == '\r' &&
+            (i == length || text.charAt(i) == '\n')) builder.setLength(blen - 1);
+        field = builder;
+        fieldStart = 0;
+        fieldEnd = builder.length();
+      }
+
+      endRecord = i == length || text.charAt(i) == '\n';
+      pos = i + 1;
+    }
+  }
+
+  /**
+   * Block of complete records, parsed into its own typed column buffers.
+   */
+  protected class Chunk implements Callable<Chunk> {
+    byte[] bytes;
+    int rowCount;
+    int capacity;
+    Object[] columns;
+    ArrayList<ArrayList<String>> categories;
+    ArrayList<HashMap<String, Integer>> codes;
+    ArrayList<ArrayList<String>> samples;
+    NumberScanner scanner;
+
+    Chunk(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    public Chunk call() {
+      int ncol = types.length;
+      capacity = 1024;
+      columns = new Object[ncol];
+      categories = new ArrayList<ArrayList<String>>();
+      codes = new ArrayList<HashMap<String, Integer>>();
+      samples = new ArrayList<ArrayList<String>>();
+      for (int col = 0; col < ncol; col++) {
+        if (selected(col)) columns[col] = allocate(types[col], capacity);
+        categories.add(new ArrayList<String>());
+        codes.add(new HashMap<String, Integer>());
+        samples.add(new ArrayList<String>());
+      }
+      scanner = new NumberScanner();
+
+      RecordReader reader = new RecordReader(new String(bytes, UTF8));
+      bytes = null;
+      while (reader.hasMore()) {
+        if (rowCount == capacity) grow();
+        int col = 0;
+        while (true) {
+          reader.next();
+          if (col < ncol) {
+            if (selected(col)) set(rowCount, col, reader);
+            else sample(col, reader);
+          }
+          col++;
+          if (reader.endOfRecord()) break;
+        }
+        for (; col < ncol; col++) {
+          if (selected(col)) set(rowCount, col, null);
+        }
+        rowCount++;
+      }
+      return this;
+    }
+
+    void set(int row, int col, RecordReader reader) {
+      int type = types[col];
+      CharSequence str = reader == null ? null : reader.field;
+      int from = reader == null ? 0 : reader.fieldStart;
+      int to = reader == null ? 0 : reader.fieldEnd;
+      if (type == Table.INT) {
+        ((int[])columns[col])[row] = parseInt(scanner, str, from, to, missingInt);
+      } else if (type == Table.LONG) {
+        ((long[])columns[col])[row] = parseLong(scanner, str, from, to, missingLong);
+      } else if (type == Table.FLOAT) {
+        ((float[])columns[col])[row] = parseFloat(scanner, str, from, to, missingFloat);
+      } else if (type == Table.DOUBLE) {
+        ((double[])columns[col])[row] = parseDouble(scanner, str, from, to, missingDouble);
+      } else if (type == Table.CATEGORY) {
+        int code = -1;
+        if (reader != null) {
+          String value = reader.value();
+          HashMap<String, Integer> map = codes.get(col);
+          Integer idx = map.get(value);
+          if (idx == null) {
+            ArrayList<String> cats = categories.get(col);
+            idx = cats.size();
+            map.put(value, idx);
+            cats.add(value);
+          }
+          code = idx;
+        }
+        ((int[])columns[col])[row] = code;
+      } else {
+        ((String[])columns[col])[row] = reader == null ? null : reader.value();
+      }
+    }
+
+    void sample(int col, RecordReader reader) {
+      ArrayList<String> values = samples.get(col);
+      if (values.size() == SAMPLE_SIZE) return;
+      String value = reader.value();
+      if (!value.equals(missingString)) values.add(value);
+    }
+
+    void grow() {
+      capacity *= 2;
+      for (int col = 0; col < columns.length; col++) {
+        if (columns[col] == null) continue;
+        Object array = allocate(types[col], capacity);
+        System.arraycopy(columns[col], 0, array, 0, rowCount);
+        columns[col] = array;
+      }
+    }
+  }
+
+  static protected Object allocate(int type, int size) {
+    if (type == Table.INT || type == Table.CATEGORY) return new int[size];
+    else if (type == Table.LONG) return new long[size];
+    else if (type == Table.FLOAT) return new float[size];
+    else if (type == Table.DOUBLE) return new double[size];
+    else return new String[size];
+  }
+
+  // Same conversions applied by Table.setString() for each type, where a 
+  // value that is not a valid number is stored as missing
+
+  static protected int parseInt(NumberScanner scanner, CharSequence str,
+                                int from, int to, int missing) {
+    if (str == null) return missing;
+    // The decimal part is ignored, as in PApplet.parseInt()
+    int stop = from;
+    while (stop < to && str.charAt(stop) != '.') stop++;
+    if (scanner.scan(str, from, stop) == NumberScanner.INT) {
+      return scanner.intValue();
+    }
+    return missing;
+  }
+
+  static protected long parseLong(NumberScanner scanner, CharSequence str,
+                                  int from, int to, long missing) {
+    if (str == null) return missing;
+    int type = scanner.scan(str, from, to);
+    if (type == NumberScanner.INT || type == NumberScanner.LONG) {
+      return scanner.longValue();
+    }
+    return missing;
+  }
+
+  static protected float parseFloat(NumberScanner scanner, CharSequence str,
+                                    int from, int to, float missing) {
+    if (str == null) return missing;
+    if (scanner.scan(str, from, to) == NumberScanner.NONE) return missing;
+    return scanner.floatValue();
+  }
+
+  static protected double parseDouble(NumberScanner scanner, CharSequence str,
+                                      int from, int to, double missing) {
+    if (str == null) return missing;
+    if (scanner.scan(str, from, to) == NumberScanner.NONE) return missing;
+    return scanner.doubleValue();
+  }
+}
@@ -0,0 +1,258 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import processing.data.Table;
+
+/**
+ * Columnar binary cache of the data. Each column is stored in its own
+ * contiguous region of the file so it can be memory-mapped and read by row
+ * index without parsing the text data again. The file layout is:
+ *
+ *   header:    magic, version, row count, column count
+ *   columns:   little-endian values of each column, aligned to 8 bytes
+ *   directory: titles, types, offsets, category dictionaries and stats
+ *   trailer:   offset of the directory, magic
+ *
+ */
+
+public class ColumnFile {
+  final static protected byte[] MAGIC = "MIRADATA".getBytes();
+  final static protected int VERSION = 1;
+  final static protected int HEADER_SIZE = 24;
+  final static protected int TRAILER_SIZE = 16;
+
+  static public boolean isColumnFile(File file) {
+    if (!file.exists() || file.length() < HEADER_SIZE + TRAILER_SIZE) {
+      return false;
+    }
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      byte[] magic = new byte[MAGIC.length];
+      raf.readFully(magic);
+      return Arrays.equals(magic, MAGIC) && raf.readInt() == VERSION;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      close(raf);
+    }
+  }
+
+  static public void write(MiraTable table, File file) throws IOException {
+    int rcount = table.getRowCount();
+    int ccount = table.getColumnCount();
+    table.calculateColumnStats();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+
+      // Column regions
+      long[] offsets = new long[ccount];
+      long[] lengths = new long[ccount];
+      long offset = HEADER_SIZE;
+      for (int col = 0; col < ccount; col++) {
+        DataColumn column = table.getDataColumn(col);
+        long length = BufferColumn.byteSize(column);
+        if (Integer.MAX_VALUE < length) {
+          throw new IOException("Column " + table.getColumnTitle(col) +
+                                " is too large to be mapped");
+        }
+        offsets[col] = offset;
+        lengths[col] = length;
+        if (0 < length) {
+          MappedByteBuffer buffer =
+            channel.map(FileChannel.MapMode.READ_WRITE, offset, length);
+          BufferColumn.write(column, buffer);
+          buffer.force();
+        }
+        offset = align(offset + length);
+      }
+
+      // Header
+      raf.seek(0);
+      raf.write(MAGIC);
+      raf.writeInt(VERSION);
+      raf.writeInt(rcount);
+      raf.writeInt(ccount);
+      raf.writeInt(0);
+
+      // Directory
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      writeString(out, table.getMissingString());
+      for (int col = 0; col < ccount; col++) {
+        DataColumn column = table.getDataColumn(col);
+        writeString(out, table.getColumnTitle(col));
+        out.writeInt(column.type());
+        out.writeBoolean(table.getColumnType(col) == MiraTable.DATE);
+        out.writeLong(offsets[col]);
+        out.writeLong(lengths[col]);
+        writeStrings(out, getCategories(column));
+        writeStats(out, table.getColumnStats(col));
+      }
+      out.flush();
+      raf.seek(offset);
+      raf.write(bytes.toByteArray());
+
+      // Trailer
+      raf.writeLong(offset);
+      raf.write(MAGIC);
+    } finally {
+      close(raf);
+    }
+  }
+
+  static public MiraTable read(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      long flength = raf.length();
+      byte[] magic = new byte[MAGIC.length];
+      raf.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC) || raf.readInt() != VERSION) {
+        throw new IOException(file + " is not a valid column file");
+      }
+      int rcount = raf.readInt();
+      int ccount = raf.readInt();
+
+      raf.seek(flength - TRAILER_SIZE);
+      long dirOffset = raf.readLong();
+      raf.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC) || dirOffset < HEADER_SIZE ||
+          flength - TRAILER_SIZE < dirOffset) {
+        throw new IOException(file + " is truncated");
+      }
+      byte[] dir = new byte[(int)(flength - TRAILER_SIZE - dirOffset)];
+      raf.seek(dirOffset);
+      raf.readFully(dir);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(dir));
+
+      FileChannel channel = raf.getChannel();
+      String missing = readString(in);
+      String[] titles = new String[ccount];
+      int[] types = new int[ccount];
+      boolean[] dates = new boolean[ccount];
+      DataColumn[] columns = new DataColumn[ccount];
+      ColumnStats[] stats = new ColumnStats[ccount];
+      for (int col = 0; col < ccount; col++) {
+        titles[col] = readString(in);
+        types[col] = in.readInt();
+        dates[col] = in.readBoolean();
+        long offset = in.readLong();
+        long length = in.readLong();
+        String[] categories = readStrings(in);
+        stats[col] = readStats(in, types[col], dates[col]);
+        if (flength < offset + length) {
+          throw new IOException(file + " is truncated");
+        }
+        ByteBuffer buffer = 0 < length ?
+          channel.map(FileChannel.MapMode.READ_ONLY, offset, length) :
+          ByteBuffer.allocate(0);
+        columns[col] = BufferColumn.create(buffer, types[col], rcount,
+                                           categories, missing);
+      }
+
+      MiraTable table = new MiraTable();
+      table.setMissingString(missing);
+      table.setColumnTitles(titles);
+      table.setColumnTypes(types);
+      for (int col = 0; col < ccount; col++) {
+        table.dateColumns[col] = dates[col];
+      }
+      table.setDataColumns(columns, stats, rcount);
+      return table;
+    } finally {
+      // The mapped buffers remain valid after the channel is closed
+      close(raf);
+    }
+  }
+
+  static protected String[] getCategories(DataColumn column) {
+    if (column.type() != Table.CATEGORY) return new String[0];
+    String[] categories = new String[column.getCategoryCount()];
+    for (int i = 0; i < categories.length; i++) {
+      categories[i] = column.getCategory(i);
+    }
+    return categories;
+  }
+
+  static protected void writeStats(DataOutputStream out, ColumnStats stats)
+    throws IOException {
+    out.writeInt(stats.count);
+    out.writeInt(stats.missing);
+    out.writeLong(stats.minl);
+    out.writeLong(stats.maxl);
+    out.writeDouble(stats.mind);
+    out.writeDouble(stats.maxd);
+    writeStrings(out, stats.categories);
+  }
+
+  static protected ColumnStats readStats(DataInputStream in, int type,
+                                         boolean date) throws IOException {
+    ColumnStats stats = new ColumnStats(type, date);
+    stats.count = in.readInt();
+    stats.missing = in.readInt();
+    stats.minl = in.readLong();
+    stats.maxl = in.readLong();
+    stats.mind = in.readDouble();
+    stats.maxd = in.readDouble();
+    stats.categories = readStrings(in);
+    return stats;
+  }
+
+  static protected void writeStrings(DataOutputStream out, String[] values)
+    throws IOException {
+    out.writeInt(values.length);
+    for (String value: values) writeString(out, value);
+  }
+
+  static protected String[] readStrings(DataInputStream in) throws IOException {
+    String[] values = new String[in.readInt()];
+    for (int i = 0; i < values.length; i++) values[i] = readString(in);
+    return values;
+  }
+
+  static protected void writeString(DataOutputStream out, String value)
+    throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  static protected String readString(DataInputStream in) throws IOException {
+    int len = in.readInt();
+    if (len < 0) return null;
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  static protected long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  static protected void close(RandomAccessFile raf) {
+    if (raf == null) return;
+    try {
+      raf.close();
+    } catch (IOException e) { }
+  }
+}
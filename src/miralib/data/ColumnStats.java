@@ -0,0 +1,246 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import processing.data.Table;
+
+/**
+ * Summary statistics of a data column (number of missing values, minimum and
+ * maximum, distinct categories), which are enough to initialize the range of
+ * the corresponding variable without scanning the column again. The stats of
+ * many columns can be calculated concurrently, splitting large columns into 
+ * blocks of rows that are merged afterwards.
+ *
+ */
+
+public class ColumnStats {
+  final static protected int BLOCK_SIZE = 256 * 1024;
+  
+  public int type;
+  public boolean date;
+
+  public int count;   // non-missing values
+  public int missing; // missing values
+
+  public long minl, maxl;   // int, long and date (in millis) columns
+  public double mind, maxd; // float and double columns
+  public String[] categories;
+
+  public ColumnStats(int type, boolean date) {
+    this.type = type;
+    this.date = date;
+    reset();
+  }
+
+  public void reset() {
+    count = 0;
+    missing = 0;
+    // Same initial values used by the ranges when they are reset, so the
+    // result is identical to updating the range row by row
+    if (type == Table.INT) {
+      minl = Integer.MAX_VALUE;
+      maxl = Integer.MIN_VALUE;
+    } else if (type == Table.LONG) {
+      minl = Long.MAX_VALUE;
+      maxl = Long.MIN_VALUE;
+    } else if (type == Table.FLOAT) {
+      mind = Float.MAX_VALUE;
+      maxd = Float.MIN_VALUE;
+    } else if (type == Table.DOUBLE) {
+      mind = Double.MAX_VALUE;
+      maxd = Double.MIN_VALUE;
+    } else {
+      minl = Long.MAX_VALUE;
+      maxl = Long.MIN_VALUE;
+    }
+    categories = new String[0];
+  }
+
+  /**
+   * Adds the stats of another block of rows of the same column, which must 
+   * come after the rows already included in these stats.
+   */
+  public void merge(ColumnStats other) {
+    count += other.count;
+    missing += other.missing;
+    minl = Math.min(minl, other.minl);
+    maxl = Math.max(maxl, other.maxl);
+    mind = Math.min(mind, other.mind);
+    maxd = Math.max(maxd, other.maxd);
+    if (0 < other.categories.length) {
+      // Keeping the categories by order of first appearance
+      HashSet<String> seen = new HashSet<String>();
+      ArrayList<String> values = new ArrayList<String>();
+      for (String cat: categories) {
+        seen.add(cat);
+        values.add(cat);
+      }
+      for (String cat: other.categories) {
+        if (seen.add(cat)) values.add(cat);
+      }
+      categories = values.toArray(new String[values.size()]);
+    }
+  }
+  
+  /**
+   * Calculates the stats of all the columns in a single concurrent pass, 
+   * skipping the columns that are null.
+   */
+  static public ColumnStats[] calculate(DataColumn[] columns, boolean[] dates,
+                                        String missingStr) {
+    ColumnStats[] stats = new ColumnStats[columns.length];
+    int proc = Runtime.getRuntime().availableProcessors();
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, proc));
+    try {
+      ArrayList<ForkJoinTask<ColumnStats>> tasks = 
+        new ArrayList<ForkJoinTask<ColumnStats>>();
+      for (int col = 0; col < columns.length; col++) {
+        DataColumn column = columns[col];
+        if (column == null) {
+          tasks.add(null);
+          continue;
+        }
+        if (dates[col] && !(column instanceof DataColumn.DateColumn)) {
+          column = new DataColumn.DateColumn(column);
+        }
+        tasks.add(pool.submit(new Task(column, dates[col], missingStr, 
+                                       0, column.size())));
+      }
+      for (int col = 0; col < columns.length; col++) {
+        ForkJoinTask<ColumnStats> task = tasks.get(col);
+        if (task != null) stats[col] = task.join();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    return stats;
+  }
+  
+  static public ColumnStats calculate(DataColumn column, boolean date,
+                                      String missingStr) {
+    if (date && !(column instanceof DataColumn.DateColumn)) {
+      column = new DataColumn.DateColumn(column);
+    }
+    return calculate(column, date, missingStr, 0, column.size());
+  }
+  
+  /**
+   * Calculates the stats of the rows between from (inclusive) and to 
+   * (exclusive).
+   */
+  static public ColumnStats calculate(DataColumn column, boolean date,
+                                      String missingStr, int from, int to) {
+    int type = column.type();
+    ColumnStats stats = new ColumnStats(type, date);
+    if (date) {
+      for (int r = from; r < to; r++) {
+        long millis = column.getLong(r);
+        if (millis == DateVariable.MISSING_DATE) {
+          String value = column.getString(r);
+          if (value == null || value.equals(missingStr)) stats.missing++;
+          continue;
+        }
+        stats.minl = Math.min(stats.minl, millis);
+        stats.maxl = Math.max(stats.maxl, millis);
+        stats.count++;
+      }
+    } else if (type == Table.INT) {
+      for (int r = from; r < to; r++) {
+        int value = column.getInt(r);
+        if (value == NumericalVariable.MISSING_INT) {
+          stats.missing++;
+          continue;
+        }
+        stats.minl = Math.min(stats.minl, value);
+        stats.maxl = Math.max(stats.maxl, value);
+        stats.count++;
+      }
+    } else if (type == Table.LONG) {
+      for (int r = from; r < to; r++) {
+        long value = column.getLong(r);
+        if (value == NumericalVariable.MISSING_LONG) {
+          stats.missing++;
+          continue;
+        }
+        stats.minl = Math.min(stats.minl, value);
+        stats.maxl = Math.max(stats.maxl, value);
+        stats.count++;
+      }
+    } else if (type == Table.FLOAT) {
+      for (int r = from; r < to; r++) {
+        float value = column.getFloat(r);
+        if (value == NumericalVariable.MISSING_FLOAT || Float.isNaN(value)) {
+          stats.missing++;
+          continue;
+        }
+        stats.mind = Math.min(stats.mind, value);
+        stats.maxd = Math.max(stats.maxd, value);
+        stats.count++;
+      }
+    } else if (type == Table.DOUBLE) {
+      for (int r = from; r < to; r++) {
+        double value = column.getDouble(r);
+        if (value == NumericalVariable.MISSING_DOUBLE || Double.isNaN(value)) {
+          stats.missing++;
+          continue;
+        }
+        stats.mind = Math.min(stats.mind, value);
+        stats.maxd = Math.max(stats.maxd, value);
+        stats.count++;
+      }
+    } else {
+      HashSet<String> seen = new HashSet<String>();
+      ArrayList<String> values = new ArrayList<String>();
+      for (int r = from; r < to; r++) {
+        String value = column.getString(r);
+        if (value == null || value.equals(missingStr)) {
+          stats.missing++;
+          continue;
+        }
+        if (type == Table.CATEGORY && seen.add(value)) values.add(value);
+        stats.count++;
+      }
+      stats.categories = values.toArray(new String[values.size()]);
+    }
+    return stats;
+  }
+  
+  /**
+   * Calculates the stats of a block of rows, splitting it in half while it is
+   * larger than BLOCK_SIZE.
+   */
+  @SuppressWarnings("serial")
+  static protected class Task extends RecursiveTask<ColumnStats> {
+    DataColumn column;
+    boolean date;
+    String missingStr;
+    int from, to;
+    
+    Task(DataColumn column, boolean date, String missingStr, int from, int to) {
+      this.column = column;
+      this.date = date;
+      this.missingStr = missingStr;
+      this.from = from;
+      this.to = to;
+    }
+    
+    protected ColumnStats compute() {
+      if (to - from <= BLOCK_SIZE) {
+        return calculate(column, date, missingStr, from, to);
+      }
+      int mid = (from + to) >>> 1;
+      Task first = new Task(column, date, missingStr, from, mid);
+      Task second = new Task(column, date, missingStr, mid, to);
+      second.fork();
+      ColumnStats stats = first.compute();
+      stats.merge(second.join());
+      return stats;
+    }
+  }
+}
@@ -2,7 +2,6 @@
 
 package miralib.data;
 
-import miralib.math.Numbers;
 import miralib.shannon.BinOptimizer;
 import miralib.utils.Log;
 
@@ -47,14 +46,15 @@ public class ContingencyTable {
       return;
     }
     
-    float sbinx = 1.0f / nbinx;
-    float sbiny = 1.0f / nbiny;
     double[][] counts = new double[nbinx][nbiny];
       
-    for (Value2D value: slice.values) {
-      int bx = Numbers.constrain((int)(value.x / sbinx), 0, nbinx - 1);  
-      int by = Numbers.constrain((int)(value.y / sbiny), 0, nbiny - 1);  
-      counts[bx][by] += value.w;
+    BinCodes codesx = slice.getCodesX(nbinx);
+    BinCodes codesy = slice.getCodesY(nbiny);
+    double[] w = slice.w;
+    for (int i = 0; i < slice.size; i++) {
+      int bx = codesx.get(i);  
+      int by = codesy.get(i);  
+      counts[bx][by] += w[i];
     }
     
     colCount = nbinx;
@@ -0,0 +1,289 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import processing.data.Table;
+
+/**
+ * Primitive storage for a single column of the data table. Values are read by
+ * row index straight from a typed array, so the scanning loops don't need to
+ * go through row objects and per-cell type switches.
+ *
+ */
+
+abstract public class DataColumn {
+  protected int type;
+  protected int size;
+
+  public DataColumn(int type, int size) {
+    this.type = type;
+    this.size = size;
+  }
+
+  public int type() {
+    return type;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getInt(int row) {
+    throw new UnsupportedOperationException("Column of type " +
+                                            Variable.formatType(type) +
+                                            " doesn't store int values");
+  }
+
+  public long getLong(int row) {
+    throw new UnsupportedOperationException("Column of type " +
+                                            Variable.formatType(type) +
+                                            " doesn't store long values");
+  }
+
+  public float getFloat(int row) {
+    throw new UnsupportedOperationException("Column of type " +
+                                            Variable.formatType(type) +
+                                            " doesn't store float values");
+  }
+
+  public double getDouble(int row) {
+    throw new UnsupportedOperationException("Column of type " +
+                                            Variable.formatType(type) +
+                                            " doesn't store double values");
+  }
+
+  abstract public String getString(int row);
+  
+  /**
+   * Reads the int values of count rows, starting at from, into dest. Encoded 
+   * columns decode the whole block at once.
+   */
+  public void getInts(int from, int count, int[] dest) {
+    for (int i = 0; i < count; i++) dest[i] = getInt(from + i);
+  }
+  
+  public void getLongs(int from, int count, long[] dest) {
+    for (int i = 0; i < count; i++) dest[i] = getLong(from + i);
+  }
+  
+  /**
+   * Number of entries in the dictionary of a category column. The value of a 
+   * row is its code in the dictionary, returned by getInt().
+   */
+  public int getCategoryCount() {
+    throw new UnsupportedOperationException("Column of type " +
+                                            Variable.formatType(type) +
+                                            " doesn't have categories");
+  }
+  
+  public String getCategory(int code) {
+    throw new UnsupportedOperationException("Column of type " +
+                                            Variable.formatType(type) +
+                                            " doesn't have categories");
+  }
+
+  /**
+   * Wraps the typed array holding the data of the column, without copying it.
+   */
+  static public DataColumn create(Object array, int type, int size,
+                                  String[] categories, String missing) {
+    if (type == Table.INT) {
+      return new IntColumn((int[])array, size);
+    } else if (type == Table.LONG) {
+      return new LongColumn((long[])array, size);
+    } else if (type == Table.FLOAT) {
+      return new FloatColumn((float[])array, size);
+    } else if (type == Table.DOUBLE) {
+      return new DoubleColumn((double[])array, size);
+    } else if (type == Table.CATEGORY) {
+      return new CategoryColumn((int[])array, size, categories, missing);
+    } else {
+      return new StringColumn((String[])array, size);
+    }
+  }
+
+  static public class IntColumn extends DataColumn {
+    protected int[] values;
+
+    public IntColumn(int[] values, int size) {
+      super(Table.INT, size);
+      this.values = values;
+    }
+
+    public int getInt(int row) {
+      return values[row];
+    }
+    
+    public void getInts(int from, int count, int[] dest) {
+      System.arraycopy(values, from, dest, 0, count);
+    }
+
+    public String getString(int row) {
+      return String.valueOf(values[row]);
+    }
+  }
+
+  static public class LongColumn extends DataColumn {
+    protected long[] values;
+
+    public LongColumn(long[] values, int size) {
+      super(Table.LONG, size);
+      this.values = values;
+    }
+
+    public long getLong(int row) {
+      return values[row];
+    }
+    
+    public void getLongs(int from, int count, long[] dest) {
+      System.arraycopy(values, from, dest, 0, count);
+    }
+
+    public String getString(int row) {
+      return String.valueOf(values[row]);
+    }
+  }
+
+  static public class FloatColumn extends DataColumn {
+    protected float[] values;
+
+    public FloatColumn(float[] values, int size) {
+      super(Table.FLOAT, size);
+      this.values = values;
+    }
+
+    public float getFloat(int row) {
+      return values[row];
+    }
+
+    public String getString(int row) {
+      return String.valueOf(values[row]);
+    }
+  }
+
+  static public class DoubleColumn extends DataColumn {
+    protected double[] values;
+
+    public DoubleColumn(double[] values, int size) {
+      super(Table.DOUBLE, size);
+      this.values = values;
+    }
+
+    public double getDouble(int row) {
+      return values[row];
+    }
+
+    public String getString(int row) {
+      return String.valueOf(values[row]);
+    }
+  }
+
+  static public class StringColumn extends DataColumn {
+    protected String[] values;
+
+    public StringColumn(String[] values, int size) {
+      super(Table.STRING, size);
+      this.values = values;
+    }
+
+    public String getString(int row) {
+      return values[row];
+    }
+  }
+
+  /**
+   * Date column, parsed once into milliseconds since the epoch that are read
+   * with getLong(), or DateVariable.MISSING_DATE if the value is missing or
+   * is not a date. The rest of the methods go to the column holding the 
+   * original values.
+   */
+  static public class DateColumn extends DataColumn {
+    protected DataColumn source;
+    protected DataColumn millis;
+    
+    public DateColumn(DataColumn source, DataColumn millis) {
+      super(source.type(), source.size());
+      this.source = source;
+      this.millis = millis;
+    }
+    
+    public DateColumn(DataColumn source) {
+      super(source.type(), source.size());
+      this.source = source;
+      long[] millis = new long[size];
+      if (type == Table.CATEGORY) {
+        // Each category needs to be parsed only once
+        long[] catMillis = new long[source.getCategoryCount()];
+        for (int code = 0; code < catMillis.length; code++) {
+          catMillis[code] = DateVariable.parseMillis(source.getCategory(code));
+        }
+        for (int r = 0; r < size; r++) {
+          int code = source.getInt(r);
+          if (0 <= code && code < catMillis.length) millis[r] = catMillis[code];
+          else millis[r] = DateVariable.parseMillis(source.getString(r));
+        }
+      } else {
+        for (int r = 0; r < size; r++) {
+          millis[r] = DateVariable.parseMillis(source.getString(r));
+        }
+      }
+      this.millis = new LongColumn(millis, size);
+    }
+    
+    public int getInt(int row) {
+      return source.getInt(row);
+    }
+    
+    public long getLong(int row) {
+      return millis.getLong(row);
+    }
+    
+    public String getString(int row) {
+      return source.getString(row);
+    }
+    
+    public int getCategoryCount() {
+      return source.getCategoryCount();
+    }
+    
+    public String getCategory(int code) {
+      return source.getCategory(code);
+    }
+  }
+  
+  /**
+   * Categorical column, stored as integer codes into a dictionary of category
+   * strings. Codes outside the dictionary correspond to missing values.
+   */
+  static public class CategoryColumn extends DataColumn {
+    protected int[] codes;
+    protected String[] categories;
+    protected String missing;
+
+    public CategoryColumn(int[] codes, int size, String[] categories,
+                          String missing) {
+      super(Table.CATEGORY, size);
+      this.codes = codes;
+      this.categories = categories;
+      this.missing = missing;
+    }
+
+    public int getInt(int row) {
+      return codes[row];
+    }
+
+    public String getString(int row) {
+      int code = codes[row];
+      if (code < 0 || categories.length <= code) return missing;
+      return categories[code];
+    }
+
+    public int getCategoryCount() {
+      return categories.length;
+    }
+
+    public String getCategory(int code) {
+      return categories[code];
+    }
+  }
+}
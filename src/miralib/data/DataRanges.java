@@ -2,14 +2,19 @@
 
 package miralib.data;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import miralib.utils.Log;
 
 /**
- * Dictionary that links variables with their respective ranges.
+ * Dictionary that links variables with their respective ranges. The ranges
+ * should be changed with update(), so the current snapshot can be derived
+ * from the previous one.
  *
  */
 
@@ -20,6 +25,11 @@ public class DataRanges extends HashMap<Variable, Range> {
   static final public int REMOVED_RANGE  = 2;
   static final public int MODIFIED_RANGE = 3;
   
+  static final protected AtomicLong versions = new AtomicLong();
+  
+  // Immutable copy of the current ranges, replaced after every change
+  protected volatile Snapshot snapshot;
+  
   public DataRanges() {
     super();
   }
@@ -32,21 +42,45 @@ public class DataRanges extends HashMap<Variable, Range> {
         Log.message("Found null variable in the ranges, something is going on (threading problems maybe)");
         continue;
       }
-      this.put(var, Range.create(ranges.get(var)));
+      super.put(var, Range.create(ranges.get(var)));
     }
+    // The snapshot of the source is only shared if its ranges were not 
+    // modified in place since it was taken
+    Snapshot snap = ranges instanceof Snapshot ? (Snapshot)ranges : 
+                                                 ranges.snapshot;
+    if (snap != null && snap.equals(this)) snapshot = snap;
   }
   
   synchronized public Range get(Object key) {
-    return super.get(key);
+    return getImpl(key);
   }
   
   synchronized public Set<Variable> keySet() {
-    return super.keySet();
+    return keySetImpl();
+  }
+  
+  synchronized public Range put(Variable var, Range range) {
+    snapshot = null;
+    return super.put(var, range);
+  }
+  
+  synchronized public Range remove(Object key) {
+    snapshot = null;
+    return super.remove(key);
+  }
+  
+  synchronized public void clear() {
+    snapshot = null;
+    super.clear();
   }
   
   synchronized public int update(Variable var, Range range) {
     int result = NO_CHANGE;
-    Range range0 = get(var);
+    Snapshot snap0 = snapshot;
+    // The range in the map could have been modified in place since the last
+    // snapshot was taken, so the change is found against the copy in the 
+    // snapshot
+    Range range0 = snap0 != null ? snap0.get(var) : get(var);
     if (range0 == null) {
       if (!var.maxRange(range)) {
         // Adding range for variable var for the first time.
@@ -64,9 +98,171 @@ public class DataRanges extends HashMap<Variable, Range> {
         result = MODIFIED_RANGE;
       }
     }
+    if (result != NO_CHANGE && snap0 != null) {
+      snapshot = new Snapshot(snap0, var, result == REMOVED_RANGE ? null : range);
+    } else if (result == NO_CHANGE && range0 != null) {
+      // Keeping the range that matches the snapshot
+      super.put(var, range);
+    }
     return result;      
   }
   
+  /**
+   * Returns an immutable copy of the current ranges, which is shared until
+   * the ranges change. Only the ranges that changed are copied when the next
+   * snapshot is created.
+   */
+  public Snapshot snapshot() {
+    Snapshot snap = snapshot;
+    if (snap == null) {
+      synchronized (this) {
+        snap = snapshot;
+        if (snap == null) {
+          snap = new Snapshot(this);
+          snapshot = snap;
+        }
+      }
+    }
+    return snap;
+  }
+  
+  /**
+   * Number that identifies the current state of the ranges, it is different
+   * for every snapshot.
+   */
+  public long getVersion() {
+    return snapshot().version;
+  }
+  
+  /**
+   * Chain of predicates of the ranges, ordered by selectivity. 
+   */
+  public RangeFilter getFilter() {
+    return snapshot().getFilter();
+  }
+  
+  /**
+   * Rows inside all the ranges, obtained as the intersection of the rows of
+   * each range, starting with the most selective ones, until only a few rows
+   * are left to be checked against the other ranges.
+   */
+  public RowSet getRows(int rowCount) {
+    return snapshot().getRows(rowCount);
+  }
+  
+  protected Range getImpl(Object key) {
+    return super.get(key);
+  }
+  
+  protected Set<Variable> keySetImpl() {
+    return super.keySet();
+  }
+  
+  /**
+   * Ranges that cannot be modified, which can be read concurrently without 
+   * locking. The range objects are shared between consecutive snapshots.
+   */
+  @SuppressWarnings("serial")
+  static public class Snapshot extends DataRanges {
+    final protected long version;
+    protected boolean frozen;
+    // Computed when first needed, and never modified afterwards
+    protected volatile RangeFilter filter;
+    protected volatile RowSet rows;
+    
+    protected Snapshot(DataRanges ranges) {
+      super();
+      synchronized (ranges) {
+        for (Map.Entry<Variable, Range> e: ranges.entrySet()) {
+          if (e.getKey() == null) continue;
+          super.put(e.getKey(), Range.create(e.getValue()));
+        }
+      }
+      version = versions.incrementAndGet();
+      frozen = true;
+    }
+    
+    protected Snapshot(Snapshot previous, Variable var, Range range) {
+      super();
+      for (Map.Entry<Variable, Range> e: previous.entrySet()) {
+        if (e.getKey() != var) super.put(e.getKey(), e.getValue());
+      }
+      if (range != null) {
+        Range copy = Range.create(range);
+        super.put(var, copy);
+        // Adding a range only narrows down the previous selection
+        if (previous.rows != null && !previous.containsKey(var)) {
+          rows = previous.rows.and(copy.getRows());
+        }
+      }
+      version = versions.incrementAndGet();
+      frozen = true;
+    }
+    
+    public Range get(Object key) {
+      return getImpl(key);
+    }
+    
+    public Set<Variable> keySet() {
+      return Collections.unmodifiableSet(keySetImpl());
+    }
+    
+    public Range put(Variable var, Range range) {
+      if (frozen) throw new UnsupportedOperationException("Ranges snapshot cannot be modified");
+      return super.put(var, range);
+    }
+    
+    public Range remove(Object key) {
+      throw new UnsupportedOperationException("Ranges snapshot cannot be modified");
+    }
+    
+    public void clear() {
+      throw new UnsupportedOperationException("Ranges snapshot cannot be modified");
+    }
+    
+    public int update(Variable var, Range range) {
+      throw new UnsupportedOperationException("Ranges snapshot cannot be modified");
+    }
+    
+    public Snapshot snapshot() {
+      return this;
+    }
+    
+    public long getVersion() {
+      return version;
+    }
+    
+    public RangeFilter getFilter() {
+      RangeFilter f = filter;
+      if (f == null) {
+        f = new RangeFilter(values());
+        filter = f;
+      }
+      return f;
+    }
+    
+    public RowSet getRows(int rowCount) {
+      RowSet sel = rows;
+      if (sel == null) {
+        RangeFilter f = getFilter();
+        Range[] ranges = f.getRanges();
+        int max = (int)(RangeFilter.MAX_CHECK_FRACTION * rowCount);
+        sel = RowSet.range(0, rowCount);
+        for (int i = 0; i < ranges.length && !sel.isEmpty(); i++) {
+          if (sel.cardinality() < max) {
+            // Checking the few rows left is cheaper than selecting all the 
+            // rows of the remaining ranges
+            sel = f.select(sel, i);
+            break;
+          }
+          sel = sel.and(ranges[i].getRows());
+        }
+        rows = sel;
+      }
+      return sel;
+    }
+  }
+  
   public String toString() {
     Iterator<Entry<Variable, Range>> i = entrySet().iterator();
     if (!i.hasNext())
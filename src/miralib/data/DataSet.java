@@ -5,7 +5,12 @@ package miralib.data;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.zip.GZIPInputStream;
 import java.io.BufferedReader;
@@ -34,22 +39,40 @@ import miralib.utils.Project;
  */
 
 public class DataSet {
+  /**
+   * Receives the progress of the loading of the dataset, from 0 to 1, and a 
+   * description of the current stage.
+   */
+  public interface LoadListener {
+    public void loadProgress(float progress, String stage);
+  }
+  
   protected Project project;
+  protected LoadListener listener;
+  
+  // Files that are read while the data is loading
+  protected Future<?> codebookTask;
+  protected Future<XML> groupsTask;
+  protected Future<Table> metadataTask;
   
   protected MiraTable data;
   
   protected DataTree tree; 
   protected HashMap<String, CodebookPage> codebook;
   protected ArrayList<Variable> allvars;
+  protected HashMap<Variable, String> deferredValues;
   protected ArrayList<Variable> covars;
   protected ArrayList<Variable> columns;  
   protected ArrayList<Float> scores;
   protected ArrayList<Boolean> selected;
   
   protected Variable labelVar;
+  protected SliceCache slices;
+  protected RowSampler sampler;
   
   protected Variable sortVar;
   protected DataRanges sortRanges;
+  protected SliceBuilder sortBuilder;
   protected float sortPValue;
   protected float sortMissingThreshold;
   
@@ -60,14 +83,28 @@ public class DataSet {
   protected int nonthreadedCount;
   
   public DataSet(Project project) {
+    this(project, null);
+  }
+  
+  public DataSet(Project project, LoadListener listener) {
     this.project = project;
+    this.listener = listener;
+    slices = new SliceCache();
+    sampler = new RowSampler();
     
-    loadCodebook();
+    // The patterns are set first since they are also used by the tables that 
+    // are loaded concurrently
+    Variable.setMissingString(project.missString);
+    DateVariable.setParsePattern(project.dateParsePattern);
+    DateVariable.setPrintPattern(project.datePrintPattern);
+    
+    loadFiles();
     loadData();
     loadGroups();
     loadMetadata();
     
     initColumns();
+    progress(1, "Done");
     Log.message("Done.");
   }
   
@@ -84,14 +121,8 @@ public class DataSet {
   }
   
   public int getRowCount(DataRanges ranges) {
-    DataRanges oranges = new DataRanges(ranges);
-    int ntot = 0;
-    for (int r = 0; r < data.getRowCount(); r++) {
-      TableRow row = data.getRow(r);       
-      if (!insideRanges(row, oranges)) continue;
-      ntot++; 
-    }
-    return ntot;
+    DataRanges oranges = ranges.snapshot();
+    return oranges.getRows(data.getRowCount()).cardinality();
   } 
   
   public int getGroupCount() {
@@ -368,7 +399,8 @@ public class DataSet {
   } 
   
   public Table[] getTable(ArrayList<Variable> selvars, DataRanges ranges) {
-    DataRanges oranges = new DataRanges(ranges);
+    DataRanges oranges = ranges.snapshot();
+    loadVariables(oranges, selvars.toArray(new Variable[selvars.size()]));
     
     Table datatab = new Table();
     datatab.setMissingString(data.getMissingString());
@@ -378,27 +410,18 @@ public class DataSet {
       datatab.addColumn(name, Table.STRING);
     }
     
-    int count = 0;
-    boolean[] mask = new boolean[data.getRowCount()]; 
-    for (int r = 0; r < data.getRowCount(); r++) {
-      TableRow src = data.getRow(r);
-      mask[r] = insideRanges(src, oranges);
-      if (mask[r]) count++;
-    }
-    datatab.setRowCount(count);
+    RowSet mask = oranges.getRows(data.getRowCount());
+    datatab.setRowCount(mask.cardinality());
     
     int r1 = 0;
-    for (int r0 = 0; r0 < data.getRowCount(); r0++) {
-      if (!mask[r0]) continue;
-      TableRow src = data.getRow(r0);
+    for (int r0 = mask.nextSetBit(0); r0 >= 0; r0 = mask.nextSetBit(r0 + 1)) {
       TableRow dest = datatab.getRow(r1);
       r1++;
       
       int destCol = 0;
       for (Variable var: selvars) {
-        int srcCol = var.getIndex();
-        String value = var.missing(src) ? project.missString :
-                                          src.getString(srcCol);
+        String value = var.missing(r0) ? project.missString :
+                                         var.getData().getString(r0);
         dest.setString(destCol, value);
         destCol++;
       }
@@ -437,27 +460,82 @@ public class DataSet {
   }
   
   public float getMissing(Variable var, DataRanges ranges) {
-    DataRanges oranges = new DataRanges(ranges);
-    int ntot = 0;
-    int nmis = 0;    
-    for (int r = 0; r < data.getRowCount(); r++) {
-      TableRow row = data.getRow(r);
-      if (!insideRanges(row, oranges)) continue;
-      ntot++;
-      if (var.missing(row)) nmis++;
+    loadVariables(ranges, var);
+    if (ranges.size() == 0) {
+      return (float)var.getMissingCount() / (float)data.getRowCount();
     }
+    DataRanges oranges = ranges.snapshot();
+    RowSet rows = oranges.getRows(data.getRowCount());
+    int ntot = rows.cardinality();
+    int nmis = var.getMissingRows().andCardinality(rows);
     float missing = (float)nmis / (float)ntot;    
     return missing;
   }
   
   public DataSlice1D getSlice(Variable varx, DataRanges ranges) {
-    return new DataSlice1D(data, varx, ranges, labelVar);   
+    DataSlice1D slice = slices.get(varx, ranges, labelVar);
+    if (slice == null) {
+      loadVariables(ranges, varx);
+      slice = new DataSlice1D(data, varx, ranges, labelVar, sampler);
+      slices.put(slice, labelVar);
+    }
+    return slice;
   }
   
   public DataSlice2D getSlice(Variable varx, Variable vary, DataRanges ranges) {
-    return new DataSlice2D(data, varx, vary, ranges, labelVar);
+    DataSlice2D slice = slices.get(varx, vary, ranges, labelVar);
+    if (slice == null) {
+      loadVariables(ranges, varx, vary);
+      slice = new DataSlice2D(data, varx, vary, ranges, labelVar, sampler);
+      slices.put(slice, labelVar);
+    }
+    return slice;
   }  
   
+  public SliceCache getSliceCache() {
+    return slices;
+  }
+  
+  public RowSampler getSampler() {
+    return sampler;
+  }
+  
+  /**
+   * Sets how the rows are sampled when the slices would be larger than the 
+   * maximum size of the sampler. The current scores are not updated until
+   * the columns are sorted again.
+   */
+  public void setSampler(RowSampler sampler) {
+    this.sampler = sampler;
+    slices.clear();
+  }
+  
+  /**
+   * Slice of a column against the sort key, built from the rows and values of
+   * the sort key that are shared by all the columns.
+   */
+  protected DataSlice2D getSortSlice(Variable varx) {
+    SliceBuilder builder = getSortBuilder();
+    DataSlice2D slice = slices.get(varx, builder.getVariable(), 
+                                   builder.getRanges(), labelVar);
+    if (slice == null) {
+      loadVariables(null, varx);
+      slice = builder.build(varx);
+      slices.put(slice, labelVar);
+    }
+    return slice;
+  }
+  
+  synchronized protected SliceBuilder getSortBuilder() {
+    if (sortBuilder == null || 
+        !sortBuilder.matches(sortVar, sortRanges, labelVar, sampler)) {
+      loadVariables(sortRanges, sortVar);
+      sortBuilder = new SliceBuilder(data, sortVar, sortRanges, labelVar, 
+                                     sampler);
+    }
+    return sortBuilder;
+  }
+  
   public void sort(Variable var, DataRanges ranges, float pvalue, float misst) {
     if (!var.include) {
       Log.message("Variable " + var.getName() + " is not included in the calculations, skipping sorting");
@@ -469,7 +547,7 @@ public class DataSet {
     if (sortVar != null) sortVar.sortKey = false;
     var.sortKey = true;
     sortVar = var;    
-    sortRanges = new DataRanges(ranges);
+    sortRanges = ranges.snapshot();
     sortPValue = pvalue;
     sortMissingThreshold = misst;
 
@@ -492,7 +570,7 @@ public class DataSet {
       // TODO: there might be a little delay specially when resorting after 
       // a drag operation and threads might be synchronizing on the access to the
       // data ranges.
-      sortRanges = new DataRanges(ranges);
+      sortRanges = ranges.snapshot();
       cancelCurrentSort();            
       threadedSort = false;
       nonthreadedCount = 0;
@@ -578,26 +656,37 @@ public class DataSet {
     if (clear) Collections.fill(scores, new Float(-1f));
     int proc = Runtime.getRuntime().availableProcessors();
     scorePool = (ThreadPoolExecutor)Executors.newFixedThreadPool(Math.min(1, proc - 1));
+    // Each task scores a block of columns, all their slices are built from the
+    // same rows and values of the sort key.
+    ArrayList<Integer> pending = new ArrayList<Integer>();
     for (int i = 0; i < columns.size(); i++) {
-      if (-1 < scores.get(i)) continue; 
-      final int col = i;
+      if (-1 < scores.get(i)) continue;
+      pending.add(i);
+    }
+    for (int i = 0; i < pending.size(); i += SliceBuilder.BLOCK_SIZE) {
+      final int[] block = new int[Math.min(SliceBuilder.BLOCK_SIZE, 
+                                           pending.size() - i)];
+      for (int j = 0; j < block.length; j++) block[j] = pending.get(i + j);
       scorePool.execute(new Runnable() {
         public void run() {
-          Variable vx = columns.get(col);
-          DataSlice2D slice = getSlice(vx, sortVar, sortRanges);
-          float score = 0f;
-          if (slice.missing < sortMissingThreshold) {
-            if (project.sortMethod == Project.SIMILARITY) {
-              score = Similarity.calculate(slice, sortPValue, project);
-            } else if (project.sortMethod == Project.PVALUE) { 
-              float[] res = PValue.calculate(slice, project);
-              float pval = res[1];
-              if (0 < pval) score = -(float)Math.log10(pval);
-              else score = 0;              
-              if (Float.isNaN(score)) score = 0; 
+          for (int col: block) {
+            if (Thread.currentThread().isInterrupted()) return;
+            Variable vx = columns.get(col);
+            DataSlice2D slice = getSortSlice(vx);
+            float score = 0f;
+            if (slice.missing < sortMissingThreshold) {
+              if (project.sortMethod == Project.SIMILARITY) {
+                score = Similarity.calculate(slice, sortPValue, project);
+              } else if (project.sortMethod == Project.PVALUE) { 
+                float[] res = PValue.calculate(slice, project);
+                float pval = res[1];
+                if (0 < pval) score = -(float)Math.log10(pval);
+                else score = 0;              
+                if (Float.isNaN(score)) score = 0; 
+              }
             }
+            scores.set(col, score);
           }
-          scores.set(col, score);
         }
       });      
     }
@@ -637,12 +726,47 @@ public class DataSet {
     return sortVar;
   }
   
-  final static protected boolean insideRanges(TableRow row, DataRanges ranges) {
-    boolean inside = true;
-    for (Range range: ranges.values()) {
-      if (!range.inside(row)) return false;  
+  /**
+   * Starts reading the codebook, groups and metadata, which don't depend on 
+   * the data, so they are ready by the time the data is loaded.
+   */
+  protected void loadFiles() {
+    ExecutorService loader = Executors.newCachedThreadPool();
+    codebookTask = loader.submit(new Runnable() {
+      public void run() {
+        loadCodebook();
+      }
+    });
+    groupsTask = loader.submit(new Callable<XML>() {
+      public XML call() {
+        if (project.hasGroups() && new File(project.getGroupsPath()).exists()) {
+          return loadXML(project.getGroupsPath());
+        }
+        return null;
+      }
+    });
+    metadataTask = loader.submit(new Callable<Table>() {
+      public Table call() {
+        if (project.hasDictionary()) return loadTable(project.getDictionaryPath());
+        return null;
+      }
+    });
+    loader.shutdown();
+  }
+  
+  protected <T> T waitFor(Future<T> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Log.error("Loading was interrupted", e);
+    } catch (ExecutionException e) {
+      Log.error("Cannot load project files", e.getCause());
     }
-    return inside;    
+    return null;
+  }
+  
+  protected void progress(float progress, String stage) {
+    if (listener != null) listener.loadProgress(progress, stage);
   }
   
   protected void loadCodebook() {
@@ -687,6 +811,7 @@ public class DataSet {
   
   protected void loadData() {
     Log.message("Loading data...");
+    progress(0, "Loading data");
     
     boolean useBinary = project.hasBinary();
     
@@ -694,31 +819,41 @@ public class DataSet {
     String dictPath = project.hasDictionary() ? project.getDictionaryPath() : "";
     String binPath = project.hasBinary() ? project.getBinaryPath() : "";
     
-    if (useBinary && (new File(binPath)).exists()) {   
+    data = null;
+    if (useBinary && ColumnFile.isColumnFile(new File(binPath))) {   
       Log.message("  Reading binary file...");
-      data = loadTable(binPath);
-    } else {
+      data = loadColumnFile(binPath);
+    }
+    if (data == null) {
       Log.message("  Reading data file...");
 
       if ((new File(dictPath)).exists()) {
-        // Fast (typed) loading
-        data = loadTable(dataPath, "header,dictionary=" + dictPath, project.missString);
+        // Fast (typed) loading, only of the variables in the groups unless all 
+        // the data needs to be saved in binary format. The rest of the 
+        // variables are loaded when needed.
+        HashSet<String> selection = useBinary ? null : getGroupVariables();
+        data = loadTable(dataPath, "header,dictionary=" + dictPath, project.missString, selection);
       } else {
         // Uses the codebook, or guess types from the values, which could be 
         // potentially very slow for large tables
+        waitFor(codebookTask);
         data = loadTableNoDict(dataPath, "header", project.missString);
       }
       
       if (useBinary) {
         Log.message("  Saving data in binary format...");
-        saveTable(data, binPath, "bin");
+        saveColumnFile(data, binPath);
       }
     }
+    if (project.offHeap()) {
+      Log.message("  Moving data out of the heap...");
+      data.moveOffHeap();
+    } else {
+      data.packColumns();
+    }
     
-    Variable.setMissingString(project.missString);
-    DateVariable.setParsePattern(project.dateParsePattern);
-    DateVariable.setPrintPattern(project.datePrintPattern);    
     allvars = new ArrayList<Variable>();  
+    deferredValues = new HashMap<Variable, String>();
     for (int col = 0; col < data.getColumnCount(); col++) {
       String name = data.getColumnTitle(col);      
       int type = data.getColumnType(col);
@@ -727,26 +862,33 @@ public class DataSet {
         continue;
       }
       Variable var = Variable.create(col, name, type);
+      var.setData(data.getDataColumn(col));
       allvars.add(var);
     }
     
-    for (Variable var: allvars) {
-      var.initRange(data);
+    progress(0.6f, "Initializing variables");
+    data.calculateColumnStats();
+    for (int i = 0; i < allvars.size(); i++) {
+      Variable var = allvars.get(i);
+      if (!loaded(var)) continue;
+      var.initRange(data.getColumnStats(var.getIndex()));
       Log.message("  Variable " + var.getName() + " " + Variable.formatType(var.type()) + " " + var.formatRange());
+      progress(0.6f + 0.2f * (i + 1) / allvars.size(), "Initializing variables");
     }
     
     covars = new ArrayList<Variable>(); 
   }
    
   protected void loadGroups() {
-    if (project.hasGroups() && new File(project.getGroupsPath()).exists()) {
+    progress(0.8f, "Loading groups");
+    XML xml = waitFor(groupsTask);
+    if (xml != null) {
       Log.message("Loading groups...");
       for (Variable var: allvars) var.include = false;
       
       tree = new DataTree();
       int tableCount = 0;
       int varCount = 0; 
-      XML xml = loadXML(project.getGroupsPath());
       XML[] groups = xml.getChildren("group");
       for (XML group: groups) {
         String groupName = group.getString("name");
@@ -791,14 +933,86 @@ public class DataSet {
                         tree.tables.size() == 0 || 
                         tree.variables.size() == 0) {
       Log.message("No groups found, building default tree...");
+      loadVariables(allvars);
       tree = new DataTree(allvars);
     }    
   }
   
+  /**
+   * Names of all the variables in the groups file, or null if there are no
+   * groups.
+   */
+  protected HashSet<String> getGroupVariables() {
+    XML xml = waitFor(groupsTask);
+    if (xml == null) return null;
+    HashSet<String> names = new HashSet<String>();
+    for (XML group: xml.getChildren("group")) {
+      for (XML table: group.getChildren("table")) {
+        for (XML varx: table.getChildren("variable")) {
+          names.add(varx.getString("name"));
+        }
+      }
+    }
+    return names.size() == 0 ? null : names;
+  }
+  
+  protected boolean loaded(Variable var) {
+    return var.getData() != null;
+  }
+  
+  /**
+   * Loads the given variables and the variables in the ranges, if they were not
+   * loaded yet, before their data is read.
+   */
+  protected void loadVariables(DataRanges ranges, Variable... vars) {
+    ArrayList<Variable> needed = new ArrayList<Variable>();
+    Collections.addAll(needed, vars);
+    if (ranges != null) needed.addAll(ranges.keySet());
+    loadVariables(needed);
+  }
+  
+  /**
+   * Loads the data of the variables that were not loaded with the rest of the
+   * data (together with their weight variables), all of them in a single pass
+   * over the data file.
+   */
+  synchronized protected void loadVariables(ArrayList<Variable> vars) {
+    ArrayList<Variable> pending = new ArrayList<Variable>();
+    for (Variable var: vars) {
+      if (!loaded(var) && !pending.contains(var)) pending.add(var);
+      Variable wvar = var.weightVar;
+      if (wvar != null && !loaded(wvar) && !pending.contains(wvar)) pending.add(wvar);
+    }
+    if (pending.size() == 0) return;
+    
+    Log.message("Loading " + pending.size() + " more variables...");
+    boolean[] selection = new boolean[data.getColumnCount()];
+    for (Variable var: pending) selection[var.getIndex()] = true;
+    try {
+      data.loadColumns(createInput(project.getSourcePath()), selection);
+      if (project.offHeap()) data.moveOffHeap();
+      else data.packColumns();
+    } catch (IOException e) {
+      Log.error("Cannot load data file", e);
+    }
+    
+    data.calculateColumnStats();
+    for (Variable var: pending) {
+      var.setData(data.getDataColumn(var.getIndex()));
+      var.initRange(data.getColumnStats(var.getIndex()));
+      String values = deferredValues.remove(var);
+      if (values != null) var.initValues(values);
+      Log.message("  Variable " + var.getName() + " " + Variable.formatType(var.type()) + " " + var.formatRange());
+    }
+    slices.clear();
+  }
+  
   protected void loadMetadata() {
-    if (project.hasDictionary()) {
+    progress(0.9f, "Loading metadata");
+    Table dict = waitFor(metadataTask);
+    waitFor(codebookTask);
+    if (dict != null) {
       // Loading metadata (alias, range and weights) from dictionary file.
-      Table dict = loadTable(project.getDictionaryPath());
       for (int r = 0; r < dict.getRowCount(); r++) {
         Variable var = allvars.get(r);
         TableRow row = dict.getRow(r);
@@ -815,7 +1029,7 @@ public class DataSet {
           } else {
             // Getting range string
             String range = row.getString(2);
-            if (range != null && !range.equals("")) var.initValues(range);
+            if (range != null && !range.equals("")) initValues(var, range);
             if (3 < count) {            
               // Getting weighting information
               String weight = row.getString(3);
@@ -837,11 +1051,27 @@ public class DataSet {
             labelVar = var;
           }
         } else {
-          if (pg.hasRange()) var.initValues(pg.range);
+          if (pg.hasRange()) initValues(var, pg.range);
           if (pg.hasWeight()) initWeight(var, pg.weight);          
         }
       }
     } 
+    
+    // The label and weight variables of the included variables are needed
+    ArrayList<Variable> needed = new ArrayList<Variable>();
+    for (Variable var: allvars) {
+      if (var.include && var.weightVar != null) needed.add(var.weightVar);  
+    }
+    if (labelVar != null) needed.add(labelVar);
+    loadVariables(needed);
+  }
+  
+  protected void initValues(Variable var, String values) {
+    // The values of a variable that is not loaded yet would be overridden when
+    // its range is initialized, so these are set once it is loaded. 
+    if (loaded(var)) var.initValues(values);
+    else deferredValues.put(var, values);
+    slices.clear();
   }
   
   protected void initColumns() {
@@ -892,12 +1122,19 @@ public class DataSet {
                     "is not found in the data");                
       }
     }            
+    // The weights of the slices are not valid anymore
+    slices.clear();
   }
   
   //////////////////////////////////////////////////////////////////////////////
 
   
   protected MiraTable loadTable(String filename, String options, String missingStr) {
+    return loadTable(filename, options, missingStr, null);
+  }
+  
+  protected MiraTable loadTable(String filename, String options, String missingStr,
+                                HashSet<String> selection) {
     try {
       String optionStr = Table.extensionOptions(true, filename, options);
       String[] optionList = splitOptions(optionStr);  
@@ -906,7 +1143,7 @@ public class DataSet {
       for (String opt : optionList) {
         if (opt.startsWith("dictionary=")) {
           dict = loadDict(opt.substring(opt.indexOf('=') + 1));
-          return MiraTable.typedParse(createInput(filename), dict, optionStr, missingStr);
+          return MiraTable.typedParse(createInput(filename), dict, optionStr, missingStr, selection);
         }
       }
       return new MiraTable(createInput(filename), optionStr);
@@ -927,6 +1164,25 @@ public class DataSet {
     }
   }
   
+  protected MiraTable loadColumnFile(String filename) {
+    try {
+      return ColumnFile.read(new File(filename));
+    } catch (IOException e) {
+      Log.warning("Cannot read binary file " + filename + ", will load the data file instead");
+      return null;
+    }
+  }
+  
+  protected boolean saveColumnFile(MiraTable table, String filename) {
+    try {
+      ColumnFile.write(table, saveFile(filename));
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+  }
+  
   protected File saveFile(String where) {
     if (where == null) return null;
     String filename = where;
@@ -983,6 +1239,10 @@ public class DataSet {
     
     if ((input != null) && filename.toLowerCase().endsWith(".gz")) {
       try {
+        // Block-gzipped files can be inflated concurrently
+        if (BlockGzipInputStream.isBlockGzip(new File(filename))) {
+          return new BlockGzipInputStream(input);
+        }
         return new GZIPInputStream(input);
       } catch (IOException e) {
         e.printStackTrace();
@@ -1173,7 +1433,7 @@ public class DataSet {
         float score = scores.get(col);
         if (0 <= score) return score;  
         Variable vx = columns.get(col);
-        DataSlice2D slice = getSlice(vx, sortVar, sortRanges);        
+        DataSlice2D slice = getSortSlice(vx);        
         if (slice.missing < sortMissingThreshold) {
           if (project.sortMethod == Project.SIMILARITY) {
             score = Similarity.calculate(slice, sortPValue, project);
@@ -2,11 +2,13 @@
 
 package miralib.data;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import miralib.math.Numbers;
 import processing.data.Table;
-import processing.data.TableRow;
 
 /**
  * 1-dimensional data slice, i.e.: all the (normalized) data values for a single
@@ -19,17 +21,47 @@ public class DataSlice1D {
   
   public Variable varx;
   public DataRanges ranges;
-  public ArrayList<Value1D> values;
+  // Values stored in parallel arrays, only the first size elements are used
+  public double[] x, w;
+  public String[] labels;
+  // Rows of the values, only kept to format their labels when needed
+  protected int[] labelRows;
+  protected LabelCache labelCache;
+  public int size;
   public long countx;
   public float missing;
+  // True if the slice is shared through the cache of the data set
+  protected volatile boolean cached;
+  protected volatile BinCodes codesx;
+  
+  /**
+   * Read-only view of the values as Value1D copies, which follows the values
+   * added to the slice. It takes the place of the list of Value1D objects that 
+   * used to hold the values, but changes to the copies don't modify the slice.
+   * @deprecated use size(), get(i) or the value arrays instead
+   */
+  @Deprecated
+  final public List<Value1D> values = new AbstractList<Value1D>() {
+    public Value1D get(int i) {
+      if (i < 0 || DataSlice1D.this.size <= i) {
+        throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + 
+                                            DataSlice1D.this.size);
+      }
+      return DataSlice1D.this.get(i);
+    }
+    
+    public int size() {
+      return DataSlice1D.this.size;
+    }
+  };
   
   public DataSlice1D(Variable varx, DataRanges ranges) {
     this.varx = varx;
-    this.values = new ArrayList<Value1D>();
+    init(16);
     
-    // Create a copy of the ranges, because they can change after the slice 
-    // has been constructed    
-    this.ranges = new DataRanges(ranges);
+    // Take a snapshot of the ranges, because they can change after the slice 
+    // has been constructed
+    this.ranges = ranges.snapshot();
   }
   
   public DataSlice1D(Table data, Variable varx, DataRanges ranges) {
@@ -38,30 +70,119 @@ public class DataSlice1D {
   
   public DataSlice1D(Table data, Variable varx, DataRanges ranges, 
                      Variable varl) {
+    this(data, varx, ranges, varl, new RowSampler());
+  }
+  
+  public DataSlice1D(Table data, Variable varx, DataRanges ranges, 
+                     Variable varl, RowSampler sampler) {
     this.varx = varx;
-    this.values = new ArrayList<Value1D>();
     
-    // Create a copy of the ranges, because they can change after the slice 
-    // has been constructed    
-    this.ranges = new DataRanges(ranges);
+    // Take a snapshot of the ranges, because they can change after the slice 
+    // has been constructed
+    this.ranges = ranges.snapshot();
     
-    init(data, varl);
+    init(data, varl, sampler);
   } 
   
+  /**
+   * Releases the values of the slice, unless the slice was handed out by the 
+   * cache of the data set, since other users could still be reading it.
+   */
   public void dispose() {
-    values.clear();
+    if (cached) return;
+    init(0);
   } 
   
+  /**
+   * Approximate number of bytes taken by the values, labels and codes.
+   */
+  public long byteSize() {
+    long bytes = 2L * 8 * x.length;
+    if (labels != null) {
+      bytes += 8L * labels.length;
+      for (int i = 0; i < size; i++) {
+        if (labels[i] != null) bytes += 40 + 2 * labels[i].length();
+      }
+    }
+    BinCodes codes = codesx;
+    if (codes != null) bytes += codes.byteSize();
+    if (labelRows != null) bytes += 4L * labelRows.length;
+    return bytes;
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Returns a copy of the value at the given index.
+   */
+  public Value1D get(int i) {
+    Value1D value = new Value1D(x[i], w[i]);
+    value.label = getLabel(i);
+    return value;
+  }
+  
+  /**
+   * Returns copies of all the values in the slice.
+   */
+  public ArrayList<Value1D> getValues() {
+    ArrayList<Value1D> values = new ArrayList<Value1D>(size);
+    for (int i = 0; i < size; i++) values.add(get(i));
+    return values;
+  }
+  
   public void add(Value1D value) {
-    values.add(value);
+    int i = add(value.x, value.w);
+    if (value.label != null) setLabel(i, value.label);
   }
 
-  public Value1D add(double x, double w) {
-    Value1D value = new Value1D(x, w);
-    values.add(value);
-    return value;
+  /**
+   * Adds a value to the slice, returning its index, which is used to set its
+   * label. The value is not stored as a Value1D object anymore, so there is 
+   * no object to return.
+   */
+  public int add(double x, double w) {
+    if (size == this.x.length) grow();
+    this.x[size] = x;
+    this.w[size] = w;
+    return size++;
   } 
   
+  public void setLabel(int i, String label) {
+    if (labels == null) labels = new String[this.x.length];
+    labels[i] = label;
+  }
+  
+  /**
+   * Returns the label of the value at the given index, either set explicitly
+   * or formatted from the label variable, or null if there is none. 
+   */
+  public String getLabel(int i) {
+    if (labels != null && labels[i] != null) return labels[i];
+    if (labelCache != null) return labelCache.getLabel(labelRows[i]);
+    return null;
+  }
+  
+  protected void initLabels(Variable varl) {
+    if (varl == null) return;
+    labelRows = new int[x.length];
+    labelCache = new LabelCache(varl);
+  }
+  
+  /**
+   * Bin codes of the values, which are kept until the number of bins or 
+   * values change.
+   */
+  public BinCodes getCodes(int nbin) {
+    BinCodes codes = codesx;
+    if (codes == null || codes.nbins != nbin || codes.size != size) {
+      codes = BinCodes.calculate(x, size, nbin);
+      codesx = codes;
+    }
+    return codes;
+  }
+  
   public void setMissing(float missing) {
     this.missing = missing;
   }
@@ -71,8 +192,8 @@ public class DataSlice1D {
   } 
   
   public void normalizeWeights(double factor) {
-    for (Value1D val: values) {
-      val.w *= factor;
+    for (int i = 0; i < size; i++) {
+      w[i] *= factor;
     }
   }
   
@@ -80,38 +201,55 @@ public class DataSlice1D {
     double mean = 0;
     double meanSq = 0;
     double std = 0; 
-    for (Value1D val: values) {
-      double x = val.x * val.w;
-      mean += x;
-      meanSq += x * x;
+    for (int i = 0; i < size; i++) {
+      double v = x[i] * w[i];
+      mean += v;
+      meanSq += v * v;
     }
-    mean /= values.size();
-    meanSq /= values.size();
+    mean /= size;
+    meanSq /= size;
     std = Math.sqrt(Math.max(0, meanSq - mean * mean));
     return new double[] {mean, std};
   }
   
-  protected void init(Table data, Variable varl) {
+  protected void init(int capacity) {
+    x = new double[capacity];
+    w = new double[capacity];
+    labels = null;
+    labelRows = null;
+    labelCache = null;
+    codesx = null;
+    size = 0;
+  }
+  
+  protected void grow() {
+    int capacity = Math.max(16, 2 * x.length);
+    x = Arrays.copyOf(x, capacity);
+    w = Arrays.copyOf(w, capacity);
+    if (labels != null) labels = Arrays.copyOf(labels, capacity);
+    if (labelRows != null) labelRows = Arrays.copyOf(labelRows, capacity);
+  }
+  
+  protected void init(Table data, Variable varl, RowSampler sampler) {
     int ntot = 0;
     int nmis = 0;
     double wsum = 0;
-    int rcount = data.getRowCount();
-    float p = (float)MAX_SLICE_SIZE / (float)rcount;
-    for (int r = 0; r < rcount; r++) {
-      if (p < 1 && p < Math.random()) continue;
-      TableRow row = data.getRow(r);       
-      if (!DataSet.insideRanges(row, ranges)) continue;
+    RowSampler.Sample sample = sampler.sample(ranges, data.getRowCount());
+    int[] rows = sample.rows;
+    init(rows.length);
+    initLabels(varl);
+    for (int n = 0; n < rows.length; n++) {
+      int r = rows[n];
       ntot++;      
-      double valx = varx.getValue(row, ranges);
-      double w = varx.getWeight(row);
+      double valx = varx.getValue(r, ranges);
+      double w = varx.getWeight(r);
       if (valx < 0 || w < 0) {
         nmis++;
         continue;
       }      
-      Value1D val = add(valx, w);  
-      if (varl != null && val != null) {
-        val.label = varl.formatValue(row);        
-      }      
+      w *= sample.getFactor(n);
+      int i = add(valx, w);  
+      if (labelRows != null) labelRows[i] = r;
       wsum += w;
     }
     long countx = varx.getCount(ranges);
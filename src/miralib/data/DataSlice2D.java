@@ -2,11 +2,13 @@
 
 package miralib.data;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import processing.data.Table;
-import processing.data.TableRow;
 import miralib.math.Numbers;
 import miralib.utils.Project;
 
@@ -21,18 +23,48 @@ public class DataSlice2D {
   
   public Variable varx, vary;
   public DataRanges ranges;
-  public ArrayList<Value2D> values;
+  // Values stored in parallel arrays, only the first size elements are used
+  public double[] x, y, w;
+  public String[] labels;
+  // Rows of the values, only kept to format their labels when needed
+  protected int[] labelRows;
+  protected LabelCache labelCache;
+  public int size;
   public long countx, county;
   public float missing;
+  // True if the slice is shared through the cache of the data set
+  protected volatile boolean cached;
+  protected volatile BinCodes codesx, codesy;
+  
+  /**
+   * Read-only view of the values as Value2D copies, which follows the values
+   * added to the slice. It takes the place of the list of Value2D objects that 
+   * used to hold the values, but changes to the copies don't modify the slice.
+   * @deprecated use size(), get(i) or the value arrays instead
+   */
+  @Deprecated
+  final public List<Value2D> values = new AbstractList<Value2D>() {
+    public Value2D get(int i) {
+      if (i < 0 || DataSlice2D.this.size <= i) {
+        throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + 
+                                            DataSlice2D.this.size);
+      }
+      return DataSlice2D.this.get(i);
+    }
+    
+    public int size() {
+      return DataSlice2D.this.size;
+    }
+  };
   
   public DataSlice2D(Variable varx, Variable vary, DataRanges ranges) {
     this.varx = varx;
     this.vary = vary;
-    this.values = new ArrayList<Value2D>();
+    init(16);
     
-    // Create a copy of the ranges, because they can change after the slice 
-    // has been constructed.    
-    this.ranges = new DataRanges(ranges);
+    // Take a snapshot of the ranges, because they can change after the slice 
+    // has been constructed.
+    this.ranges = ranges.snapshot();
   }
   
   public DataSlice2D(Table data, Variable varx, Variable vary, DataRanges ranges) {
@@ -41,50 +73,157 @@ public class DataSlice2D {
   
   public DataSlice2D(Table data, Variable varx, Variable vary, 
                      DataRanges ranges, Variable varl) {
+    this(data, varx, vary, ranges, varl, new RowSampler());
+  }
+  
+  public DataSlice2D(Table data, Variable varx, Variable vary, 
+                     DataRanges ranges, Variable varl, RowSampler sampler) {
     this.varx = varx;
     this.vary = vary;
-    this.values = new ArrayList<Value2D>();
     
-    // Create a copy of the ranges, because they can change after the slice 
-    // has been constructed.    
-    this.ranges = new DataRanges(ranges);
+    // Take a snapshot of the ranges, because they can change after the slice 
+    // has been constructed.
+    this.ranges = ranges.snapshot();
     
-    init(data, varl);    
+    init(data, varl, sampler);    
   }  
   
   public DataSlice2D shuffle() {
-    ArrayList<Value1D> valuesx = new ArrayList<Value1D>();
-    ArrayList<Value1D> valuesy = new ArrayList<Value1D>();    
-    for (Value2D val: values) {
-      valuesx.add(new Value1D(val.x, val.w));
-      valuesy.add(new Value1D(val.y, val.w));
-    }
-    Collections.shuffle(valuesx);
-    Collections.shuffle(valuesy);
+    int[] permx = permutation(size);
+    int[] permy = permutation(size);
     DataSlice2D shuffled = new DataSlice2D(varx, vary, ranges);
-    for (int n = 0; n < values.size(); n++) {
-      shuffled.add(new Value2D(valuesx.get(n), valuesy.get(n))); 
+    shuffled.init(size);
+    for (int n = 0; n < size; n++) {
+      int i = permx[n];
+      int j = permy[n];
+      shuffled.add(x[i], y[j], w[i] * w[j]);
     }    
+    // The codes are shuffled as well, so they are not calculated again
+    BinCodes cx = codesx;
+    BinCodes cy = codesy;
+    if (cx != null) shuffled.codesx = cx.permute(permx);
+    if (cy != null) shuffled.codesy = cy.permute(permy);
     shuffled.countx = countx;
     shuffled.county = county;
     shuffled.missing = missing;
     return shuffled;  
   }
   
+  /**
+   * Releases the values of the slice, unless the slice was handed out by the 
+   * cache of the data set, since other users could still be reading it.
+   */
   public void dispose() {
-    values.clear();
+    if (cached) return;
+    init(0);
+  }
+  
+  /**
+   * Approximate number of bytes taken by the values, labels and codes.
+   */
+  public long byteSize() {
+    long bytes = 3L * 8 * x.length;
+    if (labels != null) {
+      bytes += 8L * labels.length;
+      for (int i = 0; i < size; i++) {
+        if (labels[i] != null) bytes += 40 + 2 * labels[i].length();
+      }
+    }
+    BinCodes cx = codesx;
+    BinCodes cy = codesy;
+    if (cx != null) bytes += cx.byteSize();
+    if (cy != null) bytes += cy.byteSize();
+    if (labelRows != null) bytes += 4L * labelRows.length;
+    return bytes;
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Returns a copy of the value at the given index.
+   */
+  public Value2D get(int i) {
+    Value2D value = new Value2D(x[i], y[i], w[i]);
+    value.label = getLabel(i);
+    return value;
+  }
+  
+  /**
+   * Returns copies of all the values in the slice.
+   */
+  public ArrayList<Value2D> getValues() {
+    ArrayList<Value2D> values = new ArrayList<Value2D>(size);
+    for (int i = 0; i < size; i++) values.add(get(i));
+    return values;
   }
   
   public void add(Value2D value) {
-    values.add(value);
+    int i = add(value.x, value.y, value.w);
+    if (value.label != null) setLabel(i, value.label);
   }
 
-  public Value2D add(double x, double y, double w) {
-    Value2D value = new Value2D(x, y, w);
-    values.add(value);
-    return value;
+  /**
+   * Adds a value to the slice, returning its index, which is used to set its
+   * label. The value is not stored as a Value2D object anymore, so there is 
+   * no object to return.
+   */
+  public int add(double x, double y, double w) {
+    if (size == this.x.length) grow();
+    this.x[size] = x;
+    this.y[size] = y;
+    this.w[size] = w;
+    return size++;
   }  
   
+  public void setLabel(int i, String label) {
+    if (labels == null) labels = new String[this.x.length];
+    labels[i] = label;
+  }
+  
+  /**
+   * Returns the label of the value at the given index, either set explicitly
+   * or formatted from the label variable, or null if there is none. 
+   */
+  public String getLabel(int i) {
+    if (labels != null && labels[i] != null) return labels[i];
+    if (labelCache != null) return labelCache.getLabel(labelRows[i]);
+    return null;
+  }
+  
+  protected void initLabels(Variable varl) {
+    if (varl == null) return;
+    labelRows = new int[x.length];
+    labelCache = new LabelCache(varl);
+  }
+  
+  /**
+   * Bin codes of the x values, which are kept until the number of bins or 
+   * values change.
+   */
+  public BinCodes getCodesX(int nbinx) {
+    BinCodes codes = codesx;
+    if (codes == null || codes.nbins != nbinx || codes.size != size) {
+      codes = BinCodes.calculate(x, size, nbinx);
+      codesx = codes;
+    }
+    return codes;
+  }
+  
+  /**
+   * Bin codes of the y values, which are kept until the number of bins or 
+   * values change.
+   */
+  public BinCodes getCodesY(int nbiny) {
+    BinCodes codes = codesy;
+    if (codes == null || codes.nbins != nbiny || codes.size != size) {
+      codes = BinCodes.calculate(y, size, nbiny);
+      codesy = codes;
+    }
+    return codes;
+  }
+  
   public void setMissing(float missing) {
     this.missing = missing;
   }
@@ -95,8 +234,8 @@ public class DataSlice2D {
   }
   
   public void normalizeWeights(double factor) {
-    for (Value2D val: values) {
-      val.w *= factor;
+    for (int i = 0; i < size; i++) {
+      w[i] *= factor;
     }
   }
   
@@ -104,13 +243,13 @@ public class DataSlice2D {
     double mean = 0;
     double meanSq = 0;
     double std = 0; 
-    for (Value2D val: values) { 
-      double x = val.x * val.w;
-      mean += x;
-      meanSq += x * x;
+    for (int i = 0; i < size; i++) { 
+      double v = x[i] * w[i];
+      mean += v;
+      meanSq += v * v;
     }
-    mean /= values.size();
-    meanSq /= values.size();
+    mean /= size;
+    meanSq /= size;
     std = Math.sqrt(Math.max(0, meanSq - mean * mean));
     return new double[] {mean, std};
   }
@@ -119,21 +258,22 @@ public class DataSlice2D {
     double mean = 0;
     double meanSq = 0;
     double std = 0; 
-    for (Value2D val: values) { 
-      double y = val.y * val.w;
-      mean += y;
-      meanSq += y * y;
+    for (int i = 0; i < size; i++) { 
+      double v = y[i] * w[i];
+      mean += v;
+      meanSq += v * v;
     }
-    mean /= values.size();
-    meanSq /= values.size();
+    mean /= size;
+    meanSq /= size;
     std = Math.sqrt(Math.max(0, meanSq - mean * mean));
     return new double[] {mean, std};
   }    
   
   public DataSlice1D getSliceX() {
     DataSlice1D slice = new DataSlice1D(varx, ranges);
-    for (Value2D val: values) {
-      slice.add(val.x, val.w);
+    slice.init(size);
+    for (int i = 0; i < size; i++) {
+      slice.add(x[i], w[i]);
     }
     slice.setCount(countx);
     slice.setMissing(missing);
@@ -142,8 +282,9 @@ public class DataSlice2D {
   
   public DataSlice1D getSliceY() {
     DataSlice1D slice = new DataSlice1D(vary, ranges);
-    for (Value2D val: values) {
-      slice.add(val.y, val.w);
+    slice.init(size);
+    for (int i = 0; i < size; i++) {
+      slice.add(y[i], w[i]);
     }
     slice.setCount(county);
     slice.setMissing(missing);
@@ -158,28 +299,60 @@ public class DataSlice2D {
     return new ContingencyTable(this, prefs.binAlgorithm);
   }
   
-  protected void init(Table data, Variable varl) {
+  protected void init(int capacity) {
+    x = new double[capacity];
+    y = new double[capacity];
+    w = new double[capacity];
+    labels = null;
+    labelRows = null;
+    labelCache = null;
+    codesx = codesy = null;
+    size = 0;
+  }
+  
+  protected void grow() {
+    int capacity = Math.max(16, 2 * x.length);
+    x = Arrays.copyOf(x, capacity);
+    y = Arrays.copyOf(y, capacity);
+    w = Arrays.copyOf(w, capacity);
+    if (labels != null) labels = Arrays.copyOf(labels, capacity);
+    if (labelRows != null) labelRows = Arrays.copyOf(labelRows, capacity);
+  }
+  
+  static protected int[] permutation(int n) {
+    int[] perm = new int[n];
+    for (int i = 0; i < n; i++) perm[i] = i;
+    Random random = new Random();
+    for (int i = n - 1; 0 < i; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = perm[i];
+      perm[i] = perm[j];
+      perm[j] = tmp;
+    }
+    return perm;
+  }
+  
+  protected void init(Table data, Variable varl, RowSampler sampler) {
     int ntot = 0;
     int nmis = 0;    
     double wsum = 0;  
-    int rcount = data.getRowCount();
-    float p = (float)MAX_SLICE_SIZE / (float)rcount;
-    for (int r = 0; r < rcount; r++) {
-      if (p < 1 && p < Math.random()) continue;
-      TableRow row = data.getRow(r);        
-      if (!DataSet.insideRanges(row, ranges)) continue;
+    RowSampler.Sample sample = sampler.sample(ranges, data.getRowCount());
+    int[] rows = sample.rows;
+    init(rows.length);
+    initLabels(varl);
+    for (int n = 0; n < rows.length; n++) {
+      int r = rows[n];
       ntot++;
-      double valx = varx.getValue(row, ranges);
-      double valy = vary.getValue(row, ranges);
-      double w = Variable.getWeight(row, varx, vary);
+      double valx = varx.getValue(r, ranges);
+      double valy = vary.getValue(r, ranges);
+      double w = Variable.getWeight(r, varx, vary);
       if (valx < 0 || valy < 0 || w < 0) {
         nmis++;
         continue;
       }
-      Value2D val = add(valx, valy, w);
-      if (varl != null && val != null) {
-        val.label = varl.formatValue(row);        
-      }
+      w *= sample.getFactor(n);
+      int i = add(valx, valy, w);
+      if (labelRows != null) labelRows[i] = r;
       wsum += w;
     }
     long countx = varx.getCount(ranges);
@@ -191,4 +364,38 @@ public class DataSlice2D {
       normalizeWeights(factor);
     }
   }
+
+  /**
+   * Fills the slice from the rows already selected by a slice builder, and
+   * the values of the y variable in those rows.
+   */
+  protected void init(RowSampler.Sample sample, double[] valy, long county, 
+                      Variable varl) {
+    int[] rows = sample.rows;
+    int ntot = rows.length;
+    int nmis = 0;
+    double wsum = 0;
+    init(ntot);
+    initLabels(varl);
+    for (int n = 0; n < ntot; n++) {
+      int r = rows[n];
+      double valx = varx.getValue(r, ranges);
+      double w = Variable.getWeight(r, varx, vary);
+      if (valx < 0 || valy[n] < 0 || w < 0) {
+        nmis++;
+        continue;
+      }
+      w *= sample.getFactor(n);
+      int i = add(valx, valy[n], w);
+      if (labelRows != null) labelRows[i] = r;
+      wsum += w;
+    }
+    long countx = varx.getCount(ranges);
+    setCount(countx, county);
+    setMissing((float)nmis/(float)ntot);
+    double factor = (ntot - nmis) / wsum;
+    if (Numbers.different(factor, 1)) {
+      normalizeWeights(factor);
+    }
+  }
 }
@@ -62,6 +62,12 @@ public class DateRange extends Range {
     if (maxd == null) maxd = new DateTime("2099-12-31").withTimeAtStartOfDay();
   }
 
+  public void set(ColumnStats stats) {
+    if (stats.count == 0) return;
+    mind = new DateTime(stats.minl);
+    maxd = new DateTime(stats.maxl);
+  }
+
   public void reset() {
     if (mind == null) mind = new DateTime("2099-12-31").withTimeAtStartOfDay();
     if (maxd == null) maxd = new DateTime("1900-01-01").withTimeAtStartOfDay();
@@ -87,6 +93,26 @@ public class DateRange extends Range {
     return false;
   }
 
+  public void update(int row) {
+    long millis = var.data.getLong(row);
+    if (millis != DateVariable.MISSING_DATE) {
+      if (millis < mind.getMillis()) mind = new DateTime(millis);
+      if (maxd.getMillis() < millis) maxd = new DateTime(millis);      
+    }    
+  }
+
+  public boolean inside(int row) {
+    long millis = var.data.getLong(row);
+    if (millis != DateVariable.MISSING_DATE) {
+      return mind.getMillis() <= millis && millis <= maxd.getMillis();       
+    }
+    return false;
+  }
+
+  protected int overlap(ZoneMap zones, int zone) {
+    return zones.overlap(zone, mind.getMillis(), maxd.getMillis());
+  }
+
   public double getMin() {
     return mind.getMillis();
   }
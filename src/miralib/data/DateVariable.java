@@ -7,12 +7,14 @@ import java.util.ArrayList;
 import miralib.utils.Log;
 
 import org.joda.time.DateTime;
+import org.joda.time.MutableDateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
 import processing.data.TableRow;
 
 public class DateVariable extends Variable {
+  final static public long MISSING_DATE = Long.MIN_VALUE;
   
   // Standard ISO8601 formatter:
   // http://en.wikipedia.org/wiki/ISO_8601
@@ -40,6 +42,13 @@ public class DateVariable extends Variable {
     }    
   }
 
+  public void setData(DataColumn data) {
+    if (data != null && !(data instanceof DataColumn.DateColumn)) {
+      data = new DataColumn.DateColumn(data);
+    }
+    super.setData(data);
+  }
+  
   public Range createRange(double val0, double val1) {
     Range range = new DateRange(this);    
     range.set(val0, val1, false);
@@ -89,6 +98,11 @@ public class DateVariable extends Variable {
     return value == null || value.equals(missingString);
   }
 
+  public boolean missing(int row) {
+    String value = data.getString(row);
+    return value == null || value.equals(missingString);
+  }
+
   public double getValue(String str, boolean normalized) {
     DateTime dat = parsePrint(str);    
     if (dat == null) return -1;    
@@ -119,6 +133,21 @@ public class DateVariable extends Variable {
     }    
   }
 
+  public double getValue(int row, Range sel, boolean normalized) {
+    long millis = data.getLong(row);
+    if (millis == MISSING_DATE) return -1; 
+    
+    if (normalized) {
+      if (sel == null) {
+        return range.normalize(millis);
+      } else {
+        return sel.normalize(millis);
+      }        
+    } else {
+      return millis;
+    }    
+  }
+
   public String formatValue(TableRow row) {
     String value = row.getString(index);    
     DateTime date = parse(value); 
@@ -126,6 +155,12 @@ public class DateVariable extends Variable {
     return print(date);
   }
 
+  public String formatValue(int row) {
+    long millis = data.getLong(row);
+    if (millis == MISSING_DATE) return "missing";    
+    return print(new DateTime(millis));
+  }
+
   public String formatValue(double value, boolean normalized) {    
     long millis = normalized ? Math.round(range.denormalize(value)) : (long)value;
     DateTime date = new DateTime(millis);    
@@ -176,6 +211,12 @@ public class DateVariable extends Variable {
     return 0;
   }
   
+  protected double getWeightImpl(int row) {
+    String msg = "Datet variable " + name + " (" + alias + ") cannot be used as a weight";
+    Log.error(msg, new RuntimeException(msg));
+    return 0;
+  }
+  
   public static DateTime parse(String str) {
     DateTime date = null;
     try {    
@@ -186,6 +227,32 @@ public class DateVariable extends Variable {
     return date;    
   }
 
+  /**
+   * Parses the date and returns its milliseconds since the epoch, at the 
+   * start of the day, or MISSING_DATE if the string is not a date.
+   */
+  public static long parseMillis(String str) {
+    if (!isDate(str)) return MISSING_DATE;
+    DateTime date = parse(str);
+    return date == null ? MISSING_DATE : date.getMillis();
+  }
+  
+  /**
+   * Checks if the string is a date in the parse format. Non-dates are rejected 
+   * from the position returned by the parser, so this doesn't need to throw 
+   * and catch an exception for each string that is not a date.
+   */
+  public static boolean isDate(String str) {
+    if (str == null) return false;
+    MutableDateTime date = new MutableDateTime(0L);
+    try {
+      return fmtParse.parseInto(date, str, 0) == str.length();
+    } catch (IllegalArgumentException e) {
+      // Invalid field values, i.e.: month 13
+      return false;
+    }
+  }
+  
   public static DateTime parsePrint(String str) {
     DateTime date = null;
     try {    
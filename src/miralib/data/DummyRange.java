@@ -25,12 +25,18 @@ public class DummyRange extends Range {
   public void set(double min, double max, boolean normalized) {}
   public void set(ArrayList<String> values) {}
   public void set(String... values) {}
+  public void set(ColumnStats stats) {}
   public void reset() {}
   public void update(TableRow row) {}
+  public void update(int row) {}
 
   public boolean inside(TableRow row) {
     return false;
   }
+
+  public boolean inside(int row) {
+    return false;
+  }
   
   public double getMin() {
     return 0;
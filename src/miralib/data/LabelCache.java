@@ -0,0 +1,42 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Labels of the rows of a slice, formatted from the label variable only when
+ * they are requested (usually for the few points under the mouse). The most
+ * recently used labels are kept.
+ *
+ */
+
+@SuppressWarnings("serial")
+public class LabelCache extends LinkedHashMap<Integer, String> {
+  final static public int MAX_LABELS = 256;
+
+  protected Variable varl;
+
+  public LabelCache(Variable varl) {
+    super(16, 0.75f, true);
+    this.varl = varl;
+  }
+
+  public Variable getVariable() {
+    return varl;
+  }
+
+  synchronized public String getLabel(int row) {
+    String label = get(row);
+    if (label == null) {
+      label = varl.formatValue(row);
+      put(row, label);
+    }
+    return label;
+  }
+
+  protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+    return MAX_LABELS < size();
+  }
+}
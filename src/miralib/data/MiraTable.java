@@ -4,16 +4,18 @@ package miralib.data;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import miralib.data.DataSet.CodebookPage;
+import miralib.math.NumberScanner;
 import miralib.utils.Log;
 import processing.core.PApplet;
 import processing.data.Table;
-import processing.data.TableRow;
 
 /**
  * Customized table class
@@ -24,6 +26,10 @@ public class MiraTable extends Table {
   static public final int DATE = 6;
   
   boolean[] dateColumns;
+  DataColumn[] dataColumns;
+  ColumnStats[] columnStats;
+  protected int columnRowCount;
+  protected String parseOptions;
   
   final static protected int[] CHECK_FRACTION = {1, 2, 10, 100};
   final static protected int STRING_CATEGORICAL_MAX_COUNT = 100;
@@ -49,6 +55,7 @@ public class MiraTable extends Table {
     for (int i = 0; i < getColumnCount(); i++) {
       dateColumns[i] = isDateColumn(this, i, missingString);
     }
+    initDataColumns();
   }
   
   public void setColumnTypes(final Table dictionary) {
@@ -84,7 +91,8 @@ public class MiraTable extends Table {
   public MiraTable typedParse(InputStream input, String options) throws IOException {
     MiraTable table = new MiraTable();
     table.setColumnTypes(this);
-    table.parse(input, options);
+    table.parseChunks(input, options);
+    table.initDataColumns();
     return table;
   }  
   
@@ -115,22 +123,41 @@ public class MiraTable extends Table {
   }  
   
   static public boolean supportedDateString(String str) {
-    return DateVariable.parse(str) != null;
+    return DateVariable.isDate(str);
   }
   
   static public MiraTable typedParse(InputStream input, Table dict, 
                                      String options, String missing) {
+    return typedParse(input, dict, options, missing, null);
+  }
+  
+  /**
+   * Parses only the columns with the given titles (all of them if null), the 
+   * rest can be loaded later with loadColumns(). The types of the columns 
+   * that are not loaded are known from the dictionary, and whether they are 
+   * dates from a sample of their first values.
+   */
+  static public MiraTable typedParse(InputStream input, Table dict, 
+                                     String options, String missing,
+                                     Set<String> selection) {
     MiraTable table = new MiraTable();
     table.setMissingString(missing);
     table.setColumnTypes(dict);
+    ChunkedParser parser = null;
     try {
-      table.parse(input, options);
+      parser = table.parseChunks(input, options, selection);
     } catch (IOException e) {
-      Log.error("Cannot parse data", e);        
-    }    
+      Log.error("Cannot parse data", e);
+      return null;
+    }
     for (int i = 0; i < table.getColumnCount(); i++) {
-      table.dateColumns[i] = isDateColumn(table, i, missing);
+      if (parser.selected(i)) {
+        table.dateColumns[i] = isDateColumn(table, i, missing);  
+      } else {
+        table.dateColumns[i] = isDateColumn(table, i, parser.getSample(i));
+      }
     }
+    table.initDataColumns();
     return table;
   }
   
@@ -140,7 +167,7 @@ public class MiraTable extends Table {
     MiraTable table = new MiraTable();
     table.setMissingString(missing);
     try {
-      table.parse(input, options);
+      table.parseChunks(input, options);
     } catch (IOException e) {
       Log.error("Cannot parse data", e);
     }
@@ -152,17 +179,197 @@ public class MiraTable extends Table {
       CodebookPage pg = codebook.get(name);
       if (pg == null) {
         int guess = guessColumnType(table, i, missing);
-        table.setColumnType(i, guess);
+        table.convertColumn(i, guess);
         table.dateColumns[i] = isDateColumn(table, i, missing);
       } else {
-        table.setColumnType(i, pg.type);
+        table.convertColumn(i, pg.type);
       }
 //    Log.message("Column " + i + " " + table.getColumnTitle(i) + ": " + guess  + " " + table.getColumnType(i));
     }
+    table.initDataColumns();
     
     return table;
   }
   
+  /**
+   * Parses the input in chunks that are processed concurrently, using the 
+   * column types already set in the table (all the columns are read as 
+   * strings if no types are set). 
+   */
+  protected ChunkedParser parseChunks(InputStream input, String options) 
+    throws IOException {
+    return parseChunks(input, options, null);
+  }
+  
+  protected ChunkedParser parseChunks(InputStream input, String options, 
+                                      Set<String> selection) throws IOException {
+    ChunkedParser parser = new ChunkedParser(this, options);
+    if (selection != null) parser.select(selection);
+    parser.parse(input);
+    parseOptions = options;
+    
+    String[] titles = parser.getColumnTitles();
+    if (titles != null) setColumnTitles(titles);    
+    int ccount = parser.getColumnCount();
+    if (getColumnCount() < ccount) setColumnCount(ccount);
+    
+    rowCount = parser.getRowCount();
+    for (int col = 0; col < ccount; col++) {
+      int type = super.getColumnType(col);
+      Object array = parser.getColumn(col);
+      setColumn(col, type, array, parser.getCategories(col));
+    }
+    return parser;
+  }
+  
+  /**
+   * Parses the columns that were not loaded when the table was created, 
+   * reading the input again but skipping the rest of the columns.
+   */
+  public void loadColumns(InputStream input, boolean[] selection) 
+    throws IOException {
+    ChunkedParser parser = new ChunkedParser(this, parseOptions);
+    parser.select(selection);
+    parser.parse(input);
+    if (parser.getRowCount() != getRowCount()) {
+      throw new IOException("The data changed since it was first loaded");
+    }
+    
+    for (int col = 0; col < getColumnCount(); col++) {
+      if (!parser.selected(col) || isColumnLoaded(col)) continue;
+      int type = super.getColumnType(col);
+      Object array = parser.getColumn(col);
+      setColumn(col, type, array, parser.getCategories(col));
+      initDataColumn(col);
+      columnStats[col] = null;
+    }
+  }
+  
+  /**
+   * Moves the data of the loaded columns to buffers outside of the heap, 
+   * after which the values can only be read through the data columns.
+   */
+  public void moveOffHeap() {
+    for (int col = 0; col < dataColumns.length; col++) {
+      if (dataColumns[col] == null) continue;
+      DataColumn column = BufferColumn.allocateDirect(dataColumns[col], 
+                                                      missingString);
+      if (column != dataColumns[col]) {
+        dataColumns[col] = column;
+        columns[col] = null;
+      }
+    }
+  }
+  
+  /**
+   * Replaces the int and long columns in the heap by encoded columns that 
+   * take less memory, choosing the encoding of each one from its stats.
+   */
+  public void packColumns() {
+    calculateColumnStats();
+    for (int col = 0; col < dataColumns.length; col++) {
+      if (dataColumns[col] == null || dateColumns[col]) continue;
+      DataColumn column = PackedColumn.pack(dataColumns[col], columnStats[col]);
+      if (column != dataColumns[col]) {
+        dataColumns[col] = column;
+        columns[col] = null;
+      }
+    }
+  }
+  
+  public boolean isColumnLoaded(int col) {
+    return dataColumns[col] != null;
+  }
+  
+  /**
+   * Converts a column of strings to the given type, with the same conversions
+   * applied by Table.setString() but without throwing exceptions on the values
+   * that are not valid numbers.
+   */
+  protected void convertColumn(int col, int type) {
+    if (super.getColumnType(col) != STRING || type < INT || CATEGORY < type) {
+      setColumnType(col, type);
+      return;
+    }
+    
+    String[] values = (String[])columns[col];
+    int rcount = getRowCount();
+    NumberScanner scanner = new NumberScanner();
+    Object array = null;
+    ArrayList<String> categories = new ArrayList<String>();
+    if (type == INT) {
+      int[] data = new int[rcount];
+      for (int r = 0; r < rcount; r++) {
+        String str = values[r];
+        data[r] = ChunkedParser.parseInt(scanner, str, 0, length(str), missingInt);
+      }
+      array = data;
+    } else if (type == LONG) {
+      long[] data = new long[rcount];
+      for (int r = 0; r < rcount; r++) {
+        String str = values[r];
+        data[r] = ChunkedParser.parseLong(scanner, str, 0, length(str), missingLong);
+      }
+      array = data;
+    } else if (type == FLOAT) {
+      float[] data = new float[rcount];
+      for (int r = 0; r < rcount; r++) {
+        String str = values[r];
+        data[r] = ChunkedParser.parseFloat(scanner, str, 0, length(str), missingFloat);
+      }
+      array = data;
+    } else if (type == DOUBLE) {
+      double[] data = new double[rcount];
+      for (int r = 0; r < rcount; r++) {
+        String str = values[r];
+        data[r] = ChunkedParser.parseDouble(scanner, str, 0, length(str), missingDouble);
+      }
+      array = data;
+    } else if (type == CATEGORY) {
+      int[] data = new int[rcount];
+      HashMap<String, Integer> codes = new HashMap<String, Integer>();
+      for (int r = 0; r < rcount; r++) {
+        String str = values[r];
+        if (str == null) {
+          data[r] = missingCategory;
+          continue;
+        }
+        Integer code = codes.get(str);
+        if (code == null) {
+          code = categories.size();
+          codes.put(str, code);
+          categories.add(str);
+        }
+        data[r] = code;
+      }
+      array = data;
+    }
+    setColumn(col, type, array, categories.toArray(new String[categories.size()]));
+  }
+  
+  /**
+   * Replaces the data of the column by the given typed array, which must have 
+   * the same number of rows of the table.
+   */
+  protected void setColumn(int col, int type, Object array, String[] categories) {
+    // Setting the type with no rows, so there is nothing to convert
+    int rcount = rowCount;
+    rowCount = 0;
+    setColumnType(col, type);
+    rowCount = rcount;
+    if (type == CATEGORY && 0 < rcount && array != null) {
+      // Registering the categories in the dictionary of the table, so they 
+      // get the same codes used in the column.
+      columns[col] = new int[1];
+      for (String cat: categories) setString(0, col, cat);
+    }
+    columns[col] = array;
+  }
+  
+  static protected int length(String str) {
+    return str == null ? 0 : str.length();
+  }
+  
   static protected int guessColumnType(Table table, int i, String missing) {
     int type0 = table.getColumnType(i);
     if (table.getColumnType(i) != Table.STRING) return type0;
@@ -177,19 +384,20 @@ public class MiraTable extends Table {
     else if (tot < 10000) step = CHECK_FRACTION[1];
     else if (tot < 100000) step = CHECK_FRACTION[2];
     else step = CHECK_FRACTION[3];
-    for (int n = 0; n < table.getRowCount(); n++) {
-      if (n % step != 0) continue;
-      
-      TableRow row = table.getRow(n); 
-      String value = row.getString(i);
-      if (value.equals(missing)) continue;
+    NumberScanner scanner = new NumberScanner();
+    for (int n = 0; n < table.getRowCount(); n += step) {
+      String value = table.getString(n, i);
+      if (value == null || value.equals(missing)) continue;
       count++;
       
-      if (isInt(value)) typeCounts[Table.INT]++;
-      else if (isFloat(value)) typeCounts[Table.FLOAT]++;
-      else if (isLong(value)) typeCounts[Table.LONG]++;
-      else if (isDouble(value)) typeCounts[Table.DOUBLE]++;
-      else typeCounts[Table.STRING]++;       
+      // Each value is classified with a single scan of its characters
+      switch (scanner.scan(value)) {
+        case NumberScanner.INT:    typeCounts[Table.INT]++; break;
+        case NumberScanner.LONG:   typeCounts[Table.LONG]++; break;
+        case NumberScanner.FLOAT:  typeCounts[Table.FLOAT]++; break;
+        case NumberScanner.DOUBLE: typeCounts[Table.DOUBLE]++; break;
+        default:                   typeCounts[Table.STRING]++;
+      }
       if (strValues.size() <= Math.max(STRING_CATEGORICAL_MAX_COUNT, 
                                        NUMERICAL_CATEGORICAL_MAX_COUNT) + 1) strValues.add(value);
     }
@@ -233,14 +441,27 @@ public class MiraTable extends Table {
     return Table.STRING;
   }
   
+  static protected boolean isDateColumn(Table table, int i, String[] sample) {
+    if (table.getColumnType(i) == Table.STRING || 
+        table.getColumnType(i) == Table.CATEGORY) {
+      int dateCount = 0;
+      for (String value: sample) {
+        if (supportedDateString(value)) dateCount++;
+      }
+      float frac = (float)dateCount / (float)sample.length;
+      return 0.5f < frac;
+    } else {
+      return false;
+    }
+  }
+  
   static protected boolean isDateColumn(Table table, int i, String missing) {
     if (table.getColumnType(i) == Table.STRING || 
         table.getColumnType(i) == Table.CATEGORY) {
       int totCount = 0;
       int dateCount = 0;
       for (int n = 0; n < table.getRowCount(); n++) {
-        TableRow row = table.getRow(n); 
-        String value = row.getString(i);
+        String value = table.getString(n, i);
         if (value == null || value.equals(missing)) continue;
         if (supportedDateString(value)) dateCount++;
         totCount++;
@@ -253,6 +474,221 @@ public class MiraTable extends Table {
     }
   }
   
+  /**
+   * Wraps the typed arrays of the table into columns that can be read by row
+   * index. The arrays are shared with the table, so this should be called once
+   * the types and the row count won't change anymore.
+   */
+  public void initDataColumns() {
+    dataColumns = new DataColumn[getColumnCount()];
+    for (int col = 0; col < dataColumns.length; col++) initDataColumn(col);
+    columnStats = new ColumnStats[dataColumns.length];
+  }
+  
+  protected void initDataColumn(int col) {
+    if (columns[col] == null) {
+      // Not loaded yet
+      dataColumns[col] = null;
+      return;
+    }
+    int rcount = getRowCount();
+    int type = super.getColumnType(col);
+    String[] categories = null;
+    if (type == CATEGORY) {
+      // Recovering the dictionary of the column from the first row where 
+      // each code appears.
+      int[] codes = (int[])columns[col];
+      int ncat = 0;
+      for (int r = 0; r < rcount; r++) ncat = Math.max(ncat, codes[r] + 1);
+      categories = new String[ncat];
+      for (int r = 0; r < rcount; r++) {
+        int code = codes[r];
+        if (0 <= code && categories[code] == null) {
+          categories[code] = getString(r, col);
+        }
+      }
+    }
+    dataColumns[col] = DataColumn.create(columns[col], type, rcount, 
+                                         categories, missingString);
+    if (dateColumns[col]) {
+      dataColumns[col] = new DataColumn.DateColumn(dataColumns[col]);
+    }
+  }
+  
+  /**
+   * Sets columns that are not backed by the arrays of the table (i.e.: mapped
+   * from a binary file), together with their stats if already known.
+   */
+  public void setDataColumns(DataColumn[] columns, ColumnStats[] stats, 
+                             int rowCount) {
+    dataColumns = columns;
+    for (int col = 0; col < columns.length; col++) {
+      if (dateColumns[col] && !(columns[col] instanceof DataColumn.DateColumn)) {
+        dataColumns[col] = new DataColumn.DateColumn(columns[col]);
+      }
+    }
+    columnStats = stats != null ? stats : new ColumnStats[columns.length];
+    columnRowCount = rowCount;
+  }
+  
+  public DataColumn getDataColumn(int column) {
+    return dataColumns[column];
+  }
+
+  /**
+   * The values of the columns that were packed or moved off the heap are only
+   * stored in their data columns, so these getters read them from there, and
+   * the methods that would modify those columns throw an exception. Reading
+   * a column that is not loaded yet throws an exception as well.
+   */
+  public int getInt(int row, int column) {
+    if (!inHeap(column)) return dataColumns[column].getInt(row);
+    return super.getInt(row, column);
+  }
+
+  public long getLong(int row, int column) {
+    if (!inHeap(column)) return dataColumns[column].getLong(row);
+    return super.getLong(row, column);
+  }
+
+  public float getFloat(int row, int column) {
+    if (!inHeap(column)) return dataColumns[column].getFloat(row);
+    return super.getFloat(row, column);
+  }
+
+  public double getDouble(int row, int column) {
+    if (!inHeap(column)) return dataColumns[column].getDouble(row);
+    return super.getDouble(row, column);
+  }
+
+  public String getString(int row, int column) {
+    if (inHeap(column)) return super.getString(row, column);
+    DataColumn data = dataColumns[column];
+    int type = data.type();
+    boolean missing = false;
+    if (type == INT) {
+      missing = data.getInt(row) == missingInt;
+    } else if (type == LONG) {
+      missing = data.getLong(row) == missingLong;
+    } else if (type == FLOAT) {
+      float value = data.getFloat(row);
+      missing = value == missingFloat || Float.isNaN(value);
+    } else if (type == DOUBLE) {
+      double value = data.getDouble(row);
+      missing = value == missingDouble || Double.isNaN(value);
+    }
+    return missing ? missingString : data.getString(row);
+  }
+
+  public void setInt(int row, int column, int value) {
+    checkInHeap(column);
+    super.setInt(row, column, value);
+  }
+
+  public void setLong(int row, int column, long value) {
+    checkInHeap(column);
+    super.setLong(row, column, value);
+  }
+
+  public void setFloat(int row, int column, float value) {
+    checkInHeap(column);
+    super.setFloat(row, column, value);
+  }
+
+  public void setDouble(int row, int column, double value) {
+    checkInHeap(column);
+    super.setDouble(row, column, value);
+  }
+
+  public void setString(int row, int column, String value) {
+    checkInHeap(column);
+    super.setString(row, column, value);
+  }
+  
+  public void setColumnType(int column, int newType) {
+    checkInHeap(column);
+    super.setColumnType(column, newType);
+  }
+  
+  public void setRowCount(int newCount) {
+    if (newCount != getRowCount()) checkInHeap();
+    super.setRowCount(newCount);
+  }
+  
+  public void removeRow(int row) {
+    checkInHeap();
+    super.removeRow(row);
+  }
+  
+  public void insertRow(int insert, Object[] columnData) {
+    checkInHeap();
+    super.insertRow(insert, columnData);
+  }
+
+  /**
+   * Returns true if the values of the column are stored in the arrays of the
+   * table, or false if they are only stored in its data column.
+   */
+  protected boolean inHeap(int column) {
+    if (columns[column] != null) return true;
+    if (packed(column)) return false;
+    throw new IllegalStateException("Column " + column + " is not loaded");
+  }
+  
+  protected boolean packed(int column) {
+    return columns[column] == null && dataColumns != null && 
+           column < dataColumns.length && dataColumns[column] != null;
+  }
+  
+  protected void checkInHeap(int column) {
+    if (packed(column)) {
+      throw new UnsupportedOperationException("Column " + column + " was " +
+                                              "packed or moved off the " +
+                                              "heap, it cannot be modified");
+    }
+  }
+  
+  protected void checkInHeap() {
+    for (int col = 0; col < columns.length; col++) checkInHeap(col);
+  }
+  
+  public ColumnStats getColumnStats(int column) {
+    if (columnStats[column] == null) {
+      columnStats[column] = ColumnStats.calculate(dataColumns[column], 
+                                                  dateColumns[column], 
+                                                  missingString);
+    }
+    return columnStats[column];
+  }
+  
+  /**
+   * Calculates the stats of all the loaded columns that don't have them yet,
+   * in a single concurrent pass.
+   */
+  public void calculateColumnStats() {
+    DataColumn[] pending = new DataColumn[dataColumns.length];
+    int count = 0;
+    for (int col = 0; col < dataColumns.length; col++) {
+      if (columnStats[col] == null && dataColumns[col] != null) {
+        pending[col] = dataColumns[col];
+        count++;
+      }
+    }
+    if (count == 0) return;
+    ColumnStats[] stats = ColumnStats.calculate(pending, dateColumns, 
+                                                missingString);
+    for (int col = 0; col < dataColumns.length; col++) {
+      if (pending[col] != null) columnStats[col] = stats[col];
+    }
+  }
+  
+  public int getRowCount() {
+    // Not relying on a field initializer, since the row count is also needed
+    // while Table's constructor is parsing the input
+    if (columnRowCount <= 0) return super.getRowCount();
+    return columnRowCount;
+  }
+  
   public String getMissingString() {
     return missingString;
   }
@@ -319,40 +755,4 @@ public class MiraTable extends Table {
     }
     return newbie;
   }
-  
-  static protected boolean isInt(String str) {
-    try {
-      new Integer(str);
-      return true;
-    } catch (NumberFormatException e) {
-      return false; 
-    }  
-  }
-
-  static protected boolean isLong(String str) {
-    try {
-      new Long(str);
-      return true;
-    } catch (NumberFormatException e) {
-      return false; 
-    }  
-  }
-
-  static protected boolean isFloat(String str) {
-    try {
-      new Float(str);
-      return true;
-    } catch (NumberFormatException e) {
-      return false; 
-    }  
-  }
-
-  static protected boolean isDouble(String str) {
-    try {
-      new Double(str);
-      return true;
-    } catch (NumberFormatException e) {
-      return false; 
-    }  
-  }
 }
@@ -111,6 +111,22 @@ public class NumericalRange extends Range {
     }
   }  
   
+  public void set(ColumnStats stats) {
+    if (type == Table.INT) {
+      mini = (int)stats.minl;
+      maxi = (int)stats.maxl;
+    } else if (type == Table.LONG) {
+      minl = stats.minl;
+      maxl = stats.maxl;
+    } else if (type == Table.FLOAT) {
+      minf = (float)stats.mind;
+      maxf = (float)stats.maxd;
+    } else if (type == Table.DOUBLE) {
+      mind = stats.mind;
+      maxd = stats.maxd;
+    }
+  }
+  
   public void reset() {
     if (type == Table.INT) {
       mini = Integer.MAX_VALUE;
@@ -148,6 +164,27 @@ public class NumericalRange extends Range {
     }    
   }
   
+  public void update(int row) {
+    DataColumn data = var.data;
+    if (type == Table.INT) {
+      int value = data.getInt(row);
+      mini = Math.min(mini, value);
+      maxi = Math.max(maxi, value);
+    } else if (type == Table.LONG) {
+      long value = data.getLong(row);
+      minl = Math.min(minl, value);
+      maxl = Math.max(maxl, value);      
+    } else if (type == Table.FLOAT) {
+      float value = data.getFloat(row);
+      minf = Math.min(minf, value);
+      maxf = Math.max(maxf, value);
+    } else if (type == Table.DOUBLE) {
+      double value = data.getDouble(row);
+      mind = Math.min(mind, value);
+      maxd = Math.max(maxd, value);        
+    }    
+  }
+  
   public boolean inside(TableRow row) {
     int idx = var.getIndex();
     if (type == Table.INT) {
@@ -167,6 +204,48 @@ public class NumericalRange extends Range {
     }     
   }
   
+  public boolean inside(int row) {
+    DataColumn data = var.data;
+    if (type == Table.INT) {
+      int v = data.getInt(row);
+      return mini <= v && v <= maxi;
+    } else if (type == Table.LONG) {
+      long v = data.getLong(row);
+      return minl <= v && v <= maxl;
+    } else if (type == Table.FLOAT) {
+      float v = data.getFloat(row);
+      return minf <= v && v <= maxf;
+    } else if (type == Table.DOUBLE) {
+      double v = data.getDouble(row);
+      return mind <= v && v <= maxd;
+    } else {
+      return false;
+    }     
+  }
+  
+  /**
+   * Finds the rows with two binary searches on the rows of the variable sorted
+   * by value.
+   */
+  protected RowSet selectRows() {
+    if (!(var instanceof NumericalVariable)) return super.selectRows();
+    NumericalVariable nvar = (NumericalVariable)var;
+    if (type == Table.INT) {
+      return nvar.getRows(mini, maxi);
+    } else if (type == Table.LONG) {
+      return nvar.getRows(minl, maxl);
+    } else if (type == Table.FLOAT) {
+      if (Float.isNaN(minf) || Float.isNaN(maxf)) return new RowSet();
+      return nvar.getRows(NumericalVariable.sortKey(minf), 
+                          NumericalVariable.sortKey(maxf));
+    } else if (type == Table.DOUBLE) {
+      if (Double.isNaN(mind) || Double.isNaN(maxd)) return new RowSet();
+      return nvar.getRows(NumericalVariable.sortKey(mind), 
+                          NumericalVariable.sortKey(maxd));
+    }
+    return new RowSet();
+  }
+  
   public double getMin() {
     if (type == Table.INT) {
       return mini;
@@ -3,6 +3,7 @@
 package miralib.data;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import miralib.math.Numbers;
 import processing.data.Table;
@@ -20,6 +21,9 @@ public class NumericalVariable extends Variable {
   final static public long MISSING_LONG     = Long.MIN_VALUE;
   final static public float MISSING_FLOAT   = Float.NEGATIVE_INFINITY;
   final static public double MISSING_DOUBLE = Double.NEGATIVE_INFINITY;  
+  // Fraction of the rows above which a range is selected by scanning the 
+  // column instead of going through the sorted index
+  final static protected float MAX_INDEX_FRACTION = 0.5f;
   
   protected int type;
  
@@ -28,6 +32,8 @@ public class NumericalVariable extends Variable {
   protected float[] spValFloat;
   protected double[] spValDouble;  
   
+  protected volatile int[] sortedRows;
+  
   public NumericalVariable(String name, int index, int type) {
     super(name, index);
     this.type = type;
@@ -67,6 +73,14 @@ public class NumericalVariable extends Variable {
         }      
       }      
     }
+    // The special values are also missing, so the rows selected before need
+    // to be found again
+    clearCaches();
+  }
+  
+  protected void clearCaches() {
+    super.clearCaches();
+    sortedRows = null;
   }
   
   public Range createRange(double val0, double val1) {
@@ -131,6 +145,158 @@ public class NumericalVariable extends Variable {
     return miss;
   }
   
+  public boolean missing(int row) {
+    return getMissingRows().get(row);
+  }
+  
+  protected boolean missingValue(int row) {
+    boolean miss = true;
+    if (type == Table.INT) {
+      int value = data.getInt(row);
+      miss = value == MISSING_INT || specialValue(value);
+    } else if (type == Table.LONG) {
+      long value = data.getLong(row); 
+      miss = value == MISSING_LONG || specialValue(value);
+    } else if (type == Table.FLOAT) {
+      float value = data.getFloat(row);
+      miss = value == MISSING_FLOAT || specialValue(value);      
+    } else if (type == Table.DOUBLE) {
+      double value = data.getDouble(row);
+      miss = value == MISSING_DOUBLE || specialValue(value);
+    }
+    return miss;
+  }
+  
+  /**
+   * Rows sorted by value, built the first time that a range of the variable
+   * is selected. The missing values come first, and the NaNs last.
+   */
+  public int[] getSortedRows() {
+    int[] rows = sortedRows;
+    if (rows == null) {
+      int size = data.size();
+      long[] keys = new long[size];
+      rows = new int[size];
+      for (int r = 0; r < size; r++) {
+        keys[r] = sortKey(r);
+        rows[r] = r;
+      }
+      sort(keys, rows);
+      sortedRows = rows;
+    }
+    return rows;
+  }
+  
+  /**
+   * Rows with sort keys between min and max (both inclusive). The rows are 
+   * set directly in a bitmap from the slice of the sorted index, or from a 
+   * scan of the column when most of the rows are selected.
+   */
+  public RowSet getRows(long min, long max) {
+    int[] sorted = getSortedRows();
+    int size = sorted.length;
+    int from = search(sorted, min, false);
+    int to = search(sorted, max, true);
+    if (to <= from) return new RowSet();
+    long[] bits = new long[(size + 63) >>> 6];
+    if (MAX_INDEX_FRACTION * size < to - from) {
+      for (int r = 0; r < size; r++) {
+        long k = sortKey(r);
+        if (min <= k && k <= max) bits[r >>> 6] |= 1L << r;
+      }
+    } else {
+      for (int i = from; i < to; i++) {
+        int r = sorted[i];
+        bits[r >>> 6] |= 1L << r;
+      }
+    }
+    return RowSet.fromBits(bits);
+  }
+  
+  /**
+   * Value of the row as a long that keeps the order of the values.
+   */
+  public long sortKey(int row) {
+    if (type == Table.INT) {
+      return data.getInt(row);
+    } else if (type == Table.LONG) {
+      return data.getLong(row);
+    } else if (type == Table.FLOAT) {
+      return sortKey(data.getFloat(row));
+    } else if (type == Table.DOUBLE) {
+      return sortKey(data.getDouble(row));
+    }
+    return 0;
+  }
+  
+  static public long sortKey(double value) {
+    // Adding 0 turns -0 into 0, so both get the same key as they are equal 
+    // when compared
+    long bits = Double.doubleToLongBits(value + 0.0);
+    return bits ^ (bits >> 63 & Long.MAX_VALUE);
+  }
+  
+  /**
+   * Index of the first sorted row with a key larger or equal than the given 
+   * key, or strictly larger if after is true.
+   */
+  protected int search(int[] sorted, long key, boolean after) {
+    int lo = 0;
+    int hi = sorted.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      long k = sortKey(sorted[mid]);
+      if (k < key || (after && k == key)) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+  
+  /**
+   * Radix sort of the rows by their keys, one byte at a time, skipping the
+   * bytes that are the same in all the keys.
+   */
+  static protected void sort(long[] keys, int[] rows) {
+    int n = keys.length;
+    if (n < 2) return;
+    long[] keys0 = keys;
+    int[] rows0 = rows;
+    long[] keys1 = new long[n];
+    int[] rows1 = new int[n];
+    int[] pos = new int[256];
+    for (int shift = 0; shift < 64; shift += 8) {
+      Arrays.fill(pos, 0);
+      for (int i = 0; i < n; i++) pos[digit(keys[i], shift)]++;
+      if (pos[digit(keys[0], shift)] == n) continue;
+      int sum = 0;
+      for (int d = 0; d < 256; d++) {
+        int count = pos[d];
+        pos[d] = sum;
+        sum += count;
+      }
+      for (int i = 0; i < n; i++) {
+        int p = pos[digit(keys[i], shift)]++;
+        keys1[p] = keys[i];
+        rows1[p] = rows[i];
+      }
+      long[] tkeys = keys;
+      keys = keys1;
+      keys1 = tkeys;
+      int[] trows = rows;
+      rows = rows1;
+      rows1 = trows;
+    }
+    if (keys != keys0) {
+      System.arraycopy(keys, 0, keys0, 0, n);
+      System.arraycopy(rows, 0, rows0, 0, n);
+    }
+  }
+  
+  static protected int digit(long key, int shift) {
+    // Flipping the sign bit so the negative keys come first
+    return (int)((key ^ Long.MIN_VALUE) >>> shift) & 0xFF;
+  }
+  
   public double getValue(String str, boolean normalized) {
     double value = 0;
     if (type == Table.INT) {
@@ -181,6 +347,30 @@ public class NumericalVariable extends Variable {
     }
   }
   
+  public double getValue(int row, Range sel, boolean normalized) {
+    if (getMissingRows().get(row)) return -1;
+    double value = 0;
+    if (type == Table.INT) {
+      value = data.getInt(row);      
+    } else if (type == Table.LONG) {
+      value = data.getLong(row);      
+    } else if (type == Table.FLOAT) {
+      value = data.getFloat(row);      
+    } else if (type == Table.DOUBLE) {
+      value = data.getDouble(row);      
+    }
+    
+    if (normalized) {
+      if (sel == null) {
+        return range.normalize(value);
+      } else {
+        return sel.normalize(value);
+      }        
+    } else {
+      return value;
+    }
+  }
+  
   public String formatValue(TableRow row) {
     if (type == Table.INT) {
       int value = row.getInt(index);
@@ -203,6 +393,21 @@ public class NumericalVariable extends Variable {
     }
   }  
   
+  public String formatValue(int row) {
+    if (getMissingRows().get(row)) return "missing";
+    if (type == Table.INT) {
+      return Numbers.nfc(data.getInt(row));
+    } else if (type == Table.LONG) {
+      return Numbers.nfc(data.getLong(row));
+    } else if (type == Table.FLOAT) {
+      return Numbers.nfc(data.getFloat(row), 2);
+    } else if (type == Table.DOUBLE) {
+      return Numbers.nfc(data.getDouble(row), 2);
+    } else {
+      return "";
+    }
+  }
+  
   public String formatValue(double value, boolean normalized) { 
     if (type == Table.INT) {
       int ival = normalized ? (int)Math.round(range.denormalize(value)) : (int)Math.round(value);
@@ -305,6 +510,20 @@ public class NumericalVariable extends Variable {
     }    
   }
   
+  protected double getWeightImpl(int row) {
+    if (type == Table.INT) {
+      return data.getInt(row);
+    } else if (type == Table.LONG) {      
+      return data.getLong(row);
+    } else if (type == Table.FLOAT) {
+      return data.getFloat(row);      
+    } else if (type == Table.DOUBLE) {
+      return data.getDouble(row);
+    } else {
+      return 1d;
+    }    
+  }
+  
   protected boolean specialValue(int value) {
     if (spValInt == null || spValInt.length == 0) return false;
     else {
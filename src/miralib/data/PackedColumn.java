@@ -0,0 +1,195 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import processing.data.Table;
+
+/**
+ * Int and long columns encoded with the minimum number of bits per value. The
+ * encoding of each column is chosen from its stats: frame of reference (the
+ * difference with the minimum value, which is plain bit-packing when the
+ * minimum is zero), or delta encoding for columns that grow by a constant 
+ * step, such as identifiers. Values are decoded by row index in constant 
+ * time, or a block of rows at a time.
+ *
+ */
+
+abstract public class PackedColumn extends DataColumn {
+  // Widths larger than this are not worth packing
+  final static protected int MAX_WIDTH = 48;
+
+  protected int width;
+  protected long mask;
+  protected long[] words;
+
+  public PackedColumn(int type, int size, int width) {
+    super(type, size);
+    this.width = width;
+    mask = width == 0 ? 0 : (1L << width) - 1;
+    words = new long[(int)(((long)size * width + 63) / 64)];
+  }
+
+  /**
+   * Returns the encoded version of an int or long column, or the column
+   * itself if it cannot be stored in fewer bits.
+   */
+  static public DataColumn pack(DataColumn column, ColumnStats stats) {
+    int type = column.type();
+    if (!(column instanceof DataColumn.IntColumn) &&
+        !(column instanceof DataColumn.LongColumn)) return column;
+    int bits = type == Table.INT ? 32 : 64;
+    int size = column.size();
+
+    int refWidth = -1;
+    if (stats.count == 0) {
+      refWidth = 1;
+    } else if (stats.minl <= stats.maxl && 0 <= stats.maxl - stats.minl) {
+      // One extra code for the missing values
+      long codes = stats.maxl - stats.minl + (0 < stats.missing ? 1 : 0);
+      refWidth = width(codes);
+    }
+
+    // Columns that grow by a constant step, such as identifiers, only need
+    // their first value and the step, and the value of any row is obtained
+    // directly from them
+    if (stats.missing == 0 && 1 < size && (refWidth == -1 || 1 < refWidth)) {
+      long step = value(column, 1) - value(column, 0);
+      if (constantStep(column, step)) return new DeltaColumn(column, step);
+    }
+    if (-1 < refWidth && refWidth < bits && refWidth <= MAX_WIDTH) {
+      return new ReferenceColumn(column, refWidth, stats.minl, 0 < stats.missing);
+    }
+    return column;
+  }
+
+  public int getInt(int row) {
+    return (int)getLong(row);
+  }
+
+  public void getInts(int from, int count, int[] dest) {
+    for (int i = 0; i < count; i++) dest[i] = (int)getLong(from + i);
+  }
+
+  public String getString(int row) {
+    if (type == Table.INT) return String.valueOf(getInt(row));
+    return String.valueOf(getLong(row));
+  }
+
+  /**
+   * Number of bytes taken by the encoded values.
+   */
+  public long byteSize() {
+    return 8L * words.length;
+  }
+
+  protected long code(int row) {
+    if (width == 0) return 0;
+    long pos = (long)row * width;
+    int word = (int)(pos >>> 6);
+    int shift = (int)(pos & 63);
+    long code = words[word] >>> shift;
+    if (64 < shift + width) code |= words[word + 1] << (64 - shift);
+    return code & mask;
+  }
+
+  protected void setCode(int row, long code) {
+    if (width == 0) return;
+    long pos = (long)row * width;
+    int word = (int)(pos >>> 6);
+    int shift = (int)(pos & 63);
+    words[word] |= code << shift;
+    if (64 < shift + width) words[word + 1] |= code >>> (64 - shift);
+  }
+
+  static protected int width(long codes) {
+    return 64 - Long.numberOfLeadingZeros(codes);
+  }
+
+  static protected boolean constantStep(DataColumn column, long step) {
+    long prev = value(column, 0);
+    for (int r = 1; r < column.size(); r++) {
+      long value = value(column, r);
+      if (value - prev != step) return false;
+      prev = value;
+    }
+    return true;
+  }
+
+  static protected long value(DataColumn column, int row) {
+    if (column.type() == Table.INT) return column.getInt(row);
+    return column.getLong(row);
+  }
+
+  static protected long missing(int type) {
+    if (type == Table.INT) return NumericalVariable.MISSING_INT;
+    return NumericalVariable.MISSING_LONG;
+  }
+
+  /**
+   * Stores the difference of each value with the minimum of the column, the
+   * largest code is used for the missing values.
+   */
+  static public class ReferenceColumn extends PackedColumn {
+    protected long base;
+    protected long missingCode;
+    protected long missingValue;
+
+    public ReferenceColumn(DataColumn column, int width, long base,
+                           boolean hasMissing) {
+      super(column.type(), column.size(), width);
+      this.base = base;
+      missingValue = missing(type);
+      missingCode = hasMissing ? mask : -1;
+      for (int r = 0; r < size; r++) {
+        long value = value(column, r);
+        setCode(r, value == missingValue ? missingCode : value - base);
+      }
+    }
+
+    public long getLong(int row) {
+      long code = code(row);
+      return code == missingCode ? missingValue : base + code;
+    }
+
+    public void getLongs(int from, int count, long[] dest) {
+      for (int i = 0; i < count; i++) {
+        long code = code(from + i);
+        dest[i] = code == missingCode ? missingValue : base + code;
+      }
+    }
+
+    public void getInts(int from, int count, int[] dest) {
+      for (int i = 0; i < count; i++) {
+        long code = code(from + i);
+        dest[i] = (int)(code == missingCode ? missingValue : base + code);
+      }
+    }
+  }
+
+  /**
+   * Stores the first value and the constant difference between consecutive 
+   * values. A column without missing values is needed.
+   */
+  static public class DeltaColumn extends PackedColumn {
+    protected long first;
+    protected long step;
+
+    public DeltaColumn(DataColumn column, long step) {
+      super(column.type(), column.size(), 0);
+      this.first = value(column, 0);
+      this.step = step;
+    }
+
+    public long getLong(int row) {
+      return first + row * step;
+    }
+
+    public void getLongs(int from, int count, long[] dest) {
+      long value = getLong(from);
+      for (int i = 0; i < count; i++) {
+        dest[i] = value;
+        value += step;
+      }
+    }
+  }
+}
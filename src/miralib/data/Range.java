@@ -26,11 +26,14 @@ abstract public class Range {
   abstract public void set(double min, double max, boolean normalized);
   abstract public void set(ArrayList<String> values);
   abstract public void set(String... values);
+  abstract public void set(ColumnStats stats);
   
   abstract public void reset();
   abstract public void update(TableRow row);
+  abstract public void update(int row);
     
   abstract public boolean inside(TableRow row);
+  abstract public boolean inside(int row);
   
   abstract public double getMin();
   abstract public double getMax();
@@ -54,6 +57,39 @@ abstract public class Range {
   abstract public float constrain(float value);
   abstract public double constrain(double value);  
   
+  /**
+   * Rows inside the range, which are cached by the variable.
+   */
+  public RowSet getRows() {
+    return var.getRows(this);
+  }
+  
+  /**
+   * Finds the rows inside the range, only checking the rows of the zones that
+   * are partially inside the range.
+   */
+  protected RowSet selectRows() {
+    RowSet rows = new RowSet();
+    ZoneMap zones = var.getZoneMap();
+    for (int zone = 0; zone < zones.getZoneCount(); zone++) {
+      int overlap = overlap(zones, zone);
+      if (overlap == ZoneMap.NONE) continue;
+      int last = zones.getLastRow(zone);
+      for (int r = zones.getFirstRow(zone); r <= last; r++) {
+        if (overlap == ZoneMap.ALL || inside(r)) rows.add(r);
+      }
+    }
+    return rows.optimize();
+  }
+  
+  /**
+   * Finds if the rows of the zone are all, some or none inside the range, 
+   * from the summary of the zone. By default the rows need to be checked.
+   */
+  protected int overlap(ZoneMap zones, int zone) {
+    return ZoneMap.SOME;
+  }
+  
   protected double normalizeImpl(double value) {
     double min = getMin(); 
     double max = getMax();    
@@ -0,0 +1,248 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+
+import processing.data.Table;
+
+/**
+ * Immutable chain of predicates compiled from a set of ranges that don't 
+ * change anymore, such as the ranges of a snapshot. Each predicate compares 
+ * the values of the column against the bounds of the range directly, and the 
+ * chain is ordered by the estimated fraction of rows inside each
+ * range, so the most selective ranges are checked first and a row is
+ * rejected as soon as one predicate fails. The selection of the rows inside
+ * the ranges switches to the predicates once only a few rows are left.
+ *
+ */
+
+public class RangeFilter {
+  // Fraction of the rows below which the remaining ranges are checked row by
+  // row instead of intersecting the rows of each range
+  final static public float MAX_CHECK_FRACTION = 1f / 32;
+
+  protected Range[] ranges;
+  protected Predicate[] chain;
+
+  public RangeFilter(Collection<Range> values) {
+    Range[] unordered = values.toArray(new Range[values.size()]);
+    final double[] selectivity = new double[unordered.length];
+    Integer[] order = new Integer[unordered.length];
+    for (int i = 0; i < unordered.length; i++) {
+      selectivity[i] = estimate(unordered[i]);
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(selectivity[a], selectivity[b]);
+      }
+    });
+    ranges = new Range[unordered.length];
+    chain = new Predicate[unordered.length];
+    for (int i = 0; i < unordered.length; i++) {
+      ranges[i] = unordered[order[i]];
+      chain[i] = compile(ranges[i]);
+    }
+  }
+
+  /**
+   * Ranges in the order they are checked.
+   */
+  public Range[] getRanges() {
+    return ranges;
+  }
+
+  public boolean inside(int row) {
+    return inside(row, 0);
+  }
+
+  /**
+   * Returns true if the row is inside the ranges from the given position in
+   * the chain.
+   */
+  public boolean inside(int row, int first) {
+    for (int i = first; i < chain.length; i++) {
+      if (!chain[i].inside(row)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Rows from the given set that are inside the ranges from the given position
+   * in the chain.
+   */
+  public RowSet select(RowSet rows, int first) {
+    RowSet sel = new RowSet();
+    for (int r = rows.nextSetBit(0); r >= 0; r = rows.nextSetBit(r + 1)) {
+      if (inside(r, first)) sel.add(r);
+    }
+    return sel.optimize();
+  }
+
+  /**
+   * Estimated fraction of the rows inside the range, from the full range of
+   * the variable and its fraction of missing values.
+   */
+  static public double estimate(Range range) {
+    Variable var = range.var;
+    Range full = var.range;
+    double f;
+    if (range instanceof CategoricalRange) {
+      long count = full.getCount();
+      f = 0 < count ? (double)range.getCount() / count : 1;
+    } else {
+      double span = full.getMax() - full.getMin();
+      f = 0 < span ? (range.getMax() - range.getMin()) / span : 1;
+    }
+    f = Math.max(0, Math.min(1, f));
+    return f * (1 - var.getMissing());
+  }
+
+  static protected Predicate compile(Range range) {
+    DataColumn column = range.var.getData();
+    if (column == null) return new RangePredicate(range);
+    if (range instanceof NumericalRange) {
+      NumericalRange num = (NumericalRange)range;
+      if (num.type == Table.INT) {
+        return new IntPredicate(column, num.mini, num.maxi);
+      } else if (num.type == Table.LONG) {
+        return new LongPredicate(column, num.minl, num.maxl);
+      } else if (num.type == Table.FLOAT) {
+        return new FloatPredicate(column, num.minf, num.maxf);
+      } else if (num.type == Table.DOUBLE) {
+        return new DoublePredicate(column, num.mind, num.maxd);
+      }
+    } else if (range instanceof DateRange) {
+      DateRange date = (DateRange)range;
+      return new DatePredicate(column, date.mind.getMillis(),
+                                       date.maxd.getMillis());
+    } else if (range instanceof CategoricalRange) {
+      CategoricalRange cat = (CategoricalRange)range;
+      CategoricalRange.CodeIndex index = cat.getCodeIndex();
+      if (index != null) return new CodePredicate(column, index.members, cat);
+    }
+    return new RangePredicate(range);
+  }
+
+  abstract static protected class Predicate {
+    abstract boolean inside(int row);
+  }
+
+  static protected class IntPredicate extends Predicate {
+    final DataColumn column;
+    final int min, max;
+
+    IntPredicate(DataColumn column, int min, int max) {
+      this.column = column;
+      this.min = min;
+      this.max = max;
+    }
+
+    boolean inside(int row) {
+      int v = column.getInt(row);
+      return min <= v && v <= max;
+    }
+  }
+
+  static protected class LongPredicate extends Predicate {
+    final DataColumn column;
+    final long min, max;
+
+    LongPredicate(DataColumn column, long min, long max) {
+      this.column = column;
+      this.min = min;
+      this.max = max;
+    }
+
+    boolean inside(int row) {
+      long v = column.getLong(row);
+      return min <= v && v <= max;
+    }
+  }
+
+  static protected class FloatPredicate extends Predicate {
+    final DataColumn column;
+    final float min, max;
+
+    FloatPredicate(DataColumn column, float min, float max) {
+      this.column = column;
+      this.min = min;
+      this.max = max;
+    }
+
+    boolean inside(int row) {
+      float v = column.getFloat(row);
+      return min <= v && v <= max;
+    }
+  }
+
+  static protected class DoublePredicate extends Predicate {
+    final DataColumn column;
+    final double min, max;
+
+    DoublePredicate(DataColumn column, double min, double max) {
+      this.column = column;
+      this.min = min;
+      this.max = max;
+    }
+
+    boolean inside(int row) {
+      double v = column.getDouble(row);
+      return min <= v && v <= max;
+    }
+  }
+
+  static protected class DatePredicate extends Predicate {
+    final DataColumn column;
+    final long min, max;
+
+    DatePredicate(DataColumn column, long min, long max) {
+      this.column = column;
+      this.min = min;
+      this.max = max;
+    }
+
+    boolean inside(int row) {
+      long millis = column.getLong(row);
+      return millis != DateVariable.MISSING_DATE && min <= millis &&
+             millis <= max;
+    }
+  }
+
+  static protected class CodePredicate extends Predicate {
+    final DataColumn column;
+    final BitSet members;
+    final int count;
+    final Range range;
+
+    CodePredicate(DataColumn column, BitSet members, Range range) {
+      this.column = column;
+      this.members = members;
+      this.count = column.getCategoryCount();
+      this.range = range;
+    }
+
+    boolean inside(int row) {
+      int code = column.getInt(row);
+      if (0 <= code && code < count) return members.get(code);
+      // Codes outside the dictionary are compared by their string value
+      return range.inside(row);
+    }
+  }
+
+  static protected class RangePredicate extends Predicate {
+    final Range range;
+
+    RangePredicate(Range range) {
+      this.range = range;
+    }
+
+    boolean inside(int row) {
+      return range.inside(row);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import miralib.utils.Log;
+import processing.data.Table;
+
+/**
+ * Selects the rows used to build the slices when there are more rows inside
+ * the ranges than the maximum slice size. The sample is drawn with a seeded
+ * generator, so the same ranges always give the same rows, and the last sample
+ * is reused by all the slices built with the same ranges, which keeps their
+ * scores comparable. The rows can be stratified by a categorical variable, in
+ * which case each category gets a proportional share of the sample and its
+ * rows are reweighted by the inverse of the fraction that was sampled.
+ *
+ */
+
+public class RowSampler {
+  final static public int RESERVOIR = 0;
+  final static public int STRIDE    = 1;
+
+  final static public long DEFAULT_SEED = 1L;
+
+  protected int maxSize;
+  protected int method;
+  protected long seed;
+  protected Variable strata;
+
+  protected long lastVersion = -1;
+  protected Sample lastSample;
+
+  public RowSampler() {
+    this(DataSlice2D.MAX_SLICE_SIZE, RESERVOIR, DEFAULT_SEED, null);
+  }
+
+  public RowSampler(int maxSize, int method, long seed, Variable strata) {
+    this.maxSize = maxSize;
+    this.method = method;
+    this.seed = seed;
+    if (strata != null && !strata.categorical()) {
+      Log.warning("Variable " + strata.getName() + " is not categorical, " +
+                  "the sample will not be stratified");
+      strata = null;
+    }
+    this.strata = strata;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public int getMethod() {
+    return method;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  public Variable getStrata() {
+    return strata;
+  }
+
+  /**
+   * Returns the sample of the rows inside the ranges, reusing the last sample
+   * if the ranges are the same.
+   */
+  synchronized public Sample sample(DataRanges ranges, int rowCount) {
+    DataRanges snap = ranges.snapshot();
+    long version = snap.getVersion();
+    if (lastSample == null || lastVersion != version) {
+      lastSample = sample(snap.getRows(rowCount));
+      lastVersion = version;
+    }
+    return lastSample;
+  }
+
+  public Sample sample(RowSet rows) {
+    int count = rows.cardinality();
+    int[] all = new int[count];
+    int n = 0;
+    for (int r = rows.nextSetBit(0); r >= 0; r = rows.nextSetBit(r + 1)) {
+      all[n++] = r;
+    }
+    if (count <= maxSize) return new Sample(all, null);
+
+    DataColumn column = strata == null ? null : strata.getData();
+    if (column == null || column.type() != Table.CATEGORY) {
+      return new Sample(sample(all, count, maxSize, 0), null);
+    }
+
+    // Grouping the rows by category, the last stratum holds the rows with
+    // missing values or codes outside the dictionary
+    int ncat = column.getCategoryCount();
+    int[] sizes = new int[ncat + 1];
+    int[] codes = new int[count];
+    for (int i = 0; i < count; i++) {
+      int code = column.getInt(all[i]);
+      codes[i] = 0 <= code && code < ncat ? code : ncat;
+      sizes[codes[i]]++;
+    }
+    int[][] groups = new int[ncat + 1][];
+    for (int h = 0; h <= ncat; h++) groups[h] = new int[sizes[h]];
+    int[] fill = new int[ncat + 1];
+    for (int i = 0; i < count; i++) {
+      groups[codes[i]][fill[codes[i]]++] = all[i];
+    }
+
+    // Proportional allocation, with at least one row from each stratum
+    int[] selected = new int[count];
+    double[] factors = new double[count];
+    int total = 0;
+    double f = (double)maxSize / count;
+    for (int h = 0; h <= ncat; h++) {
+      int size = sizes[h];
+      if (size == 0) continue;
+      int take = Math.min(size, Math.max(1, (int)Math.round(f * size)));
+      int[] part = sample(groups[h], size, take, h);
+      // Inverse of the sampled fraction of the stratum, relative to the
+      // overall fraction
+      double factor = ((double)size / take) * f;
+      for (int r: part) {
+        selected[total] = r;
+        factors[total] = factor;
+        total++;
+      }
+    }
+
+    // The rows are returned in increasing order, as in the unsampled case
+    int[] order = sortedOrder(selected, total);
+    int[] sampled = new int[total];
+    double[] weights = new double[total];
+    for (int i = 0; i < total; i++) {
+      sampled[i] = selected[order[i]];
+      weights[i] = factors[order[i]];
+    }
+    return new Sample(sampled, weights);
+  }
+
+  /**
+   * Takes n of the first count rows, which are in increasing order, with the
+   * generator of the given stratum.
+   */
+  protected int[] sample(int[] rows, int count, int n, int stratum) {
+    if (count <= n) return Arrays.copyOf(rows, count);
+    Random random = new Random(seed + 0x9E3779B97F4A7C15L * stratum);
+    int[] res = new int[n];
+    if (method == STRIDE) {
+      // Systematic sampling from a random start
+      double step = (double)count / n;
+      double start = random.nextDouble() * step;
+      for (int k = 0; k < n; k++) {
+        res[k] = rows[Math.min(count - 1, (int)(start + k * step))];
+      }
+    } else {
+      System.arraycopy(rows, 0, res, 0, n);
+      for (int i = n; i < count; i++) {
+        int j = random.nextInt(i + 1);
+        if (j < n) res[j] = rows[i];
+      }
+      Arrays.sort(res);
+    }
+    return res;
+  }
+
+  static protected int[] sortedOrder(int[] values, int count) {
+    long[] keys = new long[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = ((long)values[i] << 32) | i;
+    }
+    Arrays.sort(keys);
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) order[i] = (int)keys[i];
+    return order;
+  }
+
+  /**
+   * Rows in the sample, in increasing order, and the factor that multiplies
+   * the weight of each row (null if all the rows have the same weight).
+   */
+  static public class Sample {
+    final public int[] rows;
+    final public double[] factors;
+
+    public Sample(int[] rows, double[] factors) {
+      this.rows = rows;
+      this.factors = factors;
+    }
+
+    public int size() {
+      return rows.length;
+    }
+
+    public double getFactor(int i) {
+      return factors == null ? 1 : factors[i];
+    }
+  }
+}
@@ -0,0 +1,554 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of row indices. The rows are split in chunks of 65536 by the
+ * high 16 bits of the index, and each chunk is stored in the smallest of three
+ * containers: a sorted array of the low bits (sparse chunks), a bitmap (dense
+ * chunks) or a list of runs of consecutive rows (clustered chunks). Sets are
+ * built by adding rows, preferably in increasing order. The set operations
+ * return a new set that can share containers with the operands, so rows
+ * should only be added while building a set.
+ *
+ */
+
+public class RowSet {
+  // Arrays larger than this take more space than a bitmap
+  final static protected int MAX_ARRAY = 4096;
+  final static protected int BITMAP_WORDS = 1024;
+  final static protected int CHUNK_SIZE = 65536;
+
+  protected int size;
+  protected char[] keys;
+  protected Container[] containers;
+
+  public RowSet() {
+    keys = new char[4];
+    containers = new Container[4];
+  }
+
+  /**
+   * Returns the set containing the rows between from (inclusive) and to
+   * (exclusive).
+   */
+  static public RowSet range(int from, int to) {
+    RowSet set = new RowSet();
+    while (from < to) {
+      int key = from >>> 16;
+      int end = Math.min(to, (key + 1) * CHUNK_SIZE);
+      RunContainer runs = new RunContainer(1);
+      runs.addRun(from & 0xFFFF, end - 1 & 0xFFFF);
+      set.append((char)key, runs);
+      from = end;
+    }
+    return set;
+  }
+
+  /**
+   * Returns the set of rows of a bitmap, where row r is the bit r % 64 of the
+   * word r / 64.
+   */
+  static public RowSet fromBits(long[] bits) {
+    RowSet set = new RowSet();
+    for (int w0 = 0; w0 < bits.length; w0 += BITMAP_WORDS) {
+      int n = Math.min(BITMAP_WORDS, bits.length - w0);
+      long[] words = new long[BITMAP_WORDS];
+      boolean empty = true;
+      for (int w = 0; w < n; w++) {
+        words[w] = bits[w0 + w];
+        if (words[w] != 0) empty = false;
+      }
+      if (!empty) set.append((char)(w0 / BITMAP_WORDS), fromWords(words));
+    }
+    return set;
+  }
+
+  public void add(int row) {
+    char key = (char)(row >>> 16);
+    int i;
+    if (0 < size && keys[size - 1] == key) {
+      i = size - 1;
+    } else {
+      i = index(key);
+      if (i < 0) {
+        i = -i - 1;
+        insert(i, key, new ArrayContainer());
+      }
+    }
+    containers[i] = containers[i].add(row & 0xFFFF);
+  }
+
+  /**
+   * Converts each container to its smallest representation, should be called
+   * once all the rows have been added.
+   */
+  public RowSet optimize() {
+    for (int i = 0; i < size; i++) {
+      containers[i] = containers[i].optimize();
+    }
+    return this;
+  }
+
+  public boolean get(int row) {
+    int i = index((char)(row >>> 16));
+    return 0 <= i && containers[i].contains(row & 0xFFFF);
+  }
+
+  /**
+   * Returns the first row in the set that is equal or larger than from, or -1
+   * if there is no such row.
+   */
+  public int nextSetBit(int from) {
+    if (from < 0) from = 0;
+    int i = index((char)(from >>> 16));
+    int low = from & 0xFFFF;
+    if (i < 0) {
+      i = -i - 1;
+      low = 0;
+    }
+    for (; i < size; i++) {
+      int next = containers[i].next(low);
+      if (-1 < next) return keys[i] << 16 | next;
+      low = 0;
+    }
+    return -1;
+  }
+
+  public int cardinality() {
+    int count = 0;
+    for (int i = 0; i < size; i++) count += containers[i].cardinality();
+    return count;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Approximate number of bytes taken by the containers.
+   */
+  public long byteSize() {
+    long bytes = 3L * keys.length;
+    for (int i = 0; i < size; i++) bytes += containers[i].byteSize();
+    return bytes;
+  }
+
+  public RowSet and(RowSet other) {
+    RowSet result = new RowSet();
+    int i = 0, j = 0;
+    while (i < size && j < other.size) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (other.keys[j] < keys[i]) {
+        j++;
+      } else {
+        Container c = and(containers[i], other.containers[j]);
+        if (0 < c.cardinality()) result.append(keys[i], c);
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  public RowSet or(RowSet other) {
+    RowSet result = new RowSet();
+    int i = 0, j = 0;
+    while (i < size || j < other.size) {
+      if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+        result.append(keys[i], containers[i]);
+        i++;
+      } else if (i == size || other.keys[j] < keys[i]) {
+        result.append(other.keys[j], other.containers[j]);
+        j++;
+      } else {
+        result.append(keys[i], or(containers[i], other.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  public RowSet andNot(RowSet other) {
+    RowSet result = new RowSet();
+    int j = 0;
+    for (int i = 0; i < size; i++) {
+      while (j < other.size && other.keys[j] < keys[i]) j++;
+      if (j < other.size && other.keys[j] == keys[i]) {
+        Container c = andNot(containers[i], other.containers[j]);
+        if (0 < c.cardinality()) result.append(keys[i], c);
+      } else {
+        result.append(keys[i], containers[i]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Number of rows in the intersection of both sets, without creating it.
+   */
+  public int andCardinality(RowSet other) {
+    int count = 0;
+    int i = 0, j = 0;
+    while (i < size && j < other.size) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (other.keys[j] < keys[i]) {
+        j++;
+      } else {
+        Container a = containers[i];
+        Container b = other.containers[j];
+        if (a instanceof ArrayContainer || b instanceof ArrayContainer) {
+          count += and(a, b).cardinality();
+        } else {
+          long[] wa = a.toWords();
+          long[] wb = b.toWords();
+          for (int w = 0; w < BITMAP_WORDS; w++) {
+            count += Long.bitCount(wa[w] & wb[w]);
+          }
+        }
+        i++;
+        j++;
+      }
+    }
+    return count;
+  }
+
+  public boolean equals(Object that) {
+    if (this == that) return true;
+    if (that instanceof RowSet) {
+      RowSet set = (RowSet)that;
+      if (size != set.size) return false;
+      for (int i = 0; i < size; i++) {
+        if (keys[i] != set.keys[i] ||
+            !Arrays.equals(containers[i].toWords(), set.containers[i].toWords())) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  public int hashCode() {
+    int hash = 0;
+    for (int i = 0; i < size; i++) {
+      hash = 31 * hash + keys[i];
+      hash = 31 * hash + Arrays.hashCode(containers[i].toWords());
+    }
+    return hash;
+  }
+
+  protected int index(char key) {
+    if (0 < size && keys[size - 1] == key) return size - 1;
+    return Arrays.binarySearch(keys, 0, size, key);
+  }
+
+  protected void append(char key, Container c) {
+    insert(size, key, c);
+  }
+
+  protected void insert(int i, char key, Container c) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, 2 * size);
+      containers = Arrays.copyOf(containers, 2 * size);
+    }
+    System.arraycopy(keys, i, keys, i + 1, size - i);
+    System.arraycopy(containers, i, containers, i + 1, size - i);
+    keys[i] = key;
+    containers[i] = c;
+    size++;
+  }
+
+  static protected Container and(Container a, Container b) {
+    if (a instanceof ArrayContainer) return ((ArrayContainer)a).filter(b, true);
+    if (b instanceof ArrayContainer) return ((ArrayContainer)b).filter(a, true);
+    long[] words = a.toWords();
+    long[] other = b.toWords();
+    for (int w = 0; w < BITMAP_WORDS; w++) words[w] &= other[w];
+    return fromWords(words);
+  }
+
+  static protected Container or(Container a, Container b) {
+    long[] words = a.toWords();
+    long[] other = b.toWords();
+    for (int w = 0; w < BITMAP_WORDS; w++) words[w] |= other[w];
+    return fromWords(words);
+  }
+
+  static protected Container andNot(Container a, Container b) {
+    if (a instanceof ArrayContainer) return ((ArrayContainer)a).filter(b, false);
+    long[] words = a.toWords();
+    long[] other = b.toWords();
+    for (int w = 0; w < BITMAP_WORDS; w++) words[w] &= ~other[w];
+    return fromWords(words);
+  }
+
+  /**
+   * Creates the smallest container holding the bits of the given bitmap.
+   */
+  static protected Container fromWords(long[] words) {
+    int count = 0;
+    int runs = 0;
+    long prev = 0;
+    for (int w = 0; w < BITMAP_WORDS; w++) {
+      long word = words[w];
+      count += Long.bitCount(word);
+      // A run starts at each bit that is set while the previous one is not
+      long carry = prev >>> 63;
+      runs += Long.bitCount(word & ~(word << 1 | carry));
+      prev = word;
+    }
+    int arrayBytes = 2 * count;
+    int runBytes = 4 * runs;
+    int bitmapBytes = 8 * BITMAP_WORDS;
+    if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+      RunContainer c = new RunContainer(runs);
+      int start = -1;
+      for (int v = 0; v < CHUNK_SIZE; v++) {
+        boolean set = (words[v >>> 6] & 1L << v) != 0;
+        if (set && start < 0) start = v;
+        if (!set && -1 < start) {
+          c.addRun(start, v - 1);
+          start = -1;
+        }
+      }
+      if (-1 < start) c.addRun(start, CHUNK_SIZE - 1);
+      return c;
+    } else if (count <= MAX_ARRAY) {
+      ArrayContainer c = new ArrayContainer(count);
+      for (int w = 0; w < BITMAP_WORDS; w++) {
+        long word = words[w];
+        while (word != 0) {
+          c.values[c.count++] = (char)(w * 64 + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return c;
+    }
+    return new BitmapContainer(words, count);
+  }
+
+  abstract static protected class Container {
+    abstract int cardinality();
+    abstract boolean contains(int low);
+    abstract int next(int low);
+    abstract Container add(int low);
+    abstract long byteSize();
+
+    // Returns a new bitmap with the values of the container
+    abstract long[] toWords();
+
+    Container optimize() {
+      return fromWords(toWords());
+    }
+  }
+
+  static protected class ArrayContainer extends Container {
+    char[] values;
+    int count;
+
+    ArrayContainer() {
+      this(4);
+    }
+
+    ArrayContainer(int capacity) {
+      values = new char[Math.max(1, capacity)];
+    }
+
+    int cardinality() {
+      return count;
+    }
+
+    boolean contains(int low) {
+      return -1 < Arrays.binarySearch(values, 0, count, (char)low);
+    }
+
+    int next(int low) {
+      int i = Arrays.binarySearch(values, 0, count, (char)low);
+      if (i < 0) i = -i - 1;
+      return i < count ? values[i] : -1;
+    }
+
+    Container add(int low) {
+      int i = count;
+      if (0 < count && low <= values[count - 1]) {
+        i = Arrays.binarySearch(values, 0, count, (char)low);
+        if (-1 < i) return this;
+        i = -i - 1;
+      }
+      if (count == MAX_ARRAY) {
+        BitmapContainer c = new BitmapContainer(toWords(), count);
+        return c.add(low);
+      }
+      if (count == values.length) {
+        values = Arrays.copyOf(values, Math.min(MAX_ARRAY, 2 * count));
+      }
+      System.arraycopy(values, i, values, i + 1, count - i);
+      values[i] = (char)low;
+      count++;
+      return this;
+    }
+
+    long byteSize() {
+      return 2L * values.length;
+    }
+
+    long[] toWords() {
+      long[] words = new long[BITMAP_WORDS];
+      for (int i = 0; i < count; i++) words[values[i] >>> 6] |= 1L << values[i];
+      return words;
+    }
+
+    // Keeps the values that are (or are not) in the other container
+    ArrayContainer filter(Container other, boolean inside) {
+      ArrayContainer c = new ArrayContainer(count);
+      for (int i = 0; i < count; i++) {
+        if (other.contains(values[i]) == inside) c.values[c.count++] = values[i];
+      }
+      c.values = Arrays.copyOf(c.values, Math.max(1, c.count));
+      return c;
+    }
+  }
+
+  static protected class BitmapContainer extends Container {
+    long[] words;
+    int count;
+
+    BitmapContainer(long[] words, int count) {
+      this.words = words;
+      this.count = count;
+    }
+
+    int cardinality() {
+      return count;
+    }
+
+    boolean contains(int low) {
+      return (words[low >>> 6] & 1L << low) != 0;
+    }
+
+    int next(int low) {
+      int w = low >>> 6;
+      long word = words[w] & -1L << low;
+      while (true) {
+        if (word != 0) return w * 64 + Long.numberOfTrailingZeros(word);
+        if (++w == BITMAP_WORDS) return -1;
+        word = words[w];
+      }
+    }
+
+    Container add(int low) {
+      if (!contains(low)) {
+        words[low >>> 6] |= 1L << low;
+        count++;
+      }
+      return this;
+    }
+
+    long byteSize() {
+      return 8L * words.length;
+    }
+
+    long[] toWords() {
+      return words.clone();
+    }
+  }
+
+  static protected class RunContainer extends Container {
+    // Start and end (inclusive) of each run
+    char[] starts;
+    char[] ends;
+    int runs;
+    int count;
+
+    RunContainer(int capacity) {
+      starts = new char[Math.max(1, capacity)];
+      ends = new char[Math.max(1, capacity)];
+    }
+
+    void addRun(int start, int end) {
+      if (runs == starts.length) {
+        starts = Arrays.copyOf(starts, Math.max(1, 2 * runs));
+        ends = Arrays.copyOf(ends, Math.max(1, 2 * runs));
+      }
+      starts[runs] = (char)start;
+      ends[runs] = (char)end;
+      runs++;
+      count += end - start + 1;
+    }
+
+    int cardinality() {
+      return count;
+    }
+
+    // Index of the last run starting at or before low, or -1
+    int run(int low) {
+      int i = Arrays.binarySearch(starts, 0, runs, (char)low);
+      return i < 0 ? -i - 2 : i;
+    }
+
+    boolean contains(int low) {
+      int i = run(low);
+      return -1 < i && low <= ends[i];
+    }
+
+    int next(int low) {
+      int i = run(low);
+      if (-1 < i && low <= ends[i]) return low;
+      return i + 1 < runs ? starts[i + 1] : -1;
+    }
+
+    Container add(int low) {
+      if (contains(low)) return this;
+      if (0 < runs && ends[runs - 1] + 1 == low) {
+        ends[runs - 1]++;
+        count++;
+        return this;
+      }
+      if (runs == 0 || ends[runs - 1] < low) {
+        addRun(low, low);
+        return this;
+      }
+      BitmapContainer c = new BitmapContainer(toWords(), count);
+      return c.add(low);
+    }
+
+    long byteSize() {
+      return 4L * starts.length;
+    }
+
+    long[] toWords() {
+      long[] words = new long[BITMAP_WORDS];
+      for (int i = 0; i < runs; i++) {
+        int start = starts[i];
+        int end = ends[i];
+        int w0 = start >>> 6;
+        int w1 = end >>> 6;
+        long first = -1L << start;
+        long last = -1L >>> (63 - (end & 63));
+        if (w0 == w1) {
+          words[w0] |= first & last;
+        } else {
+          words[w0] |= first;
+          for (int w = w0 + 1; w < w1; w++) words[w] = -1L;
+          words[w1] |= last;
+        }
+      }
+      return words;
+    }
+
+    Container optimize() {
+      if (4 * runs < Math.min(2 * count, 8 * BITMAP_WORDS)) {
+        starts = Arrays.copyOf(starts, runs);
+        ends = Arrays.copyOf(ends, runs);
+        return this;
+      }
+      return super.optimize();
+    }
+  }
+}
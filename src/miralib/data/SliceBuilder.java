@@ -0,0 +1,86 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.List;
+
+import processing.data.Table;
+
+/**
+ * Builds the slices of many variables against the same variable and ranges,
+ * such as all the columns against the sort key. The rows inside the ranges and
+ * the values of the common variable are obtained only once, and each slice is
+ * then filled with a sequential pass over the column of its own variable.
+ *
+ */
+
+public class SliceBuilder {
+  // Number of slices built by each task of the score pool
+  final static public int BLOCK_SIZE = 32;
+
+  protected Variable vary;
+  protected DataRanges ranges;
+  protected Variable varl;
+  protected RowSampler sampler;
+  protected RowSampler.Sample sample;
+  protected double[] valy;
+  protected long county;
+
+  public SliceBuilder(Table data, Variable vary, DataRanges ranges,
+                      Variable varl) {
+    this(data, vary, ranges, varl, new RowSampler());
+  }
+
+  public SliceBuilder(Table data, Variable vary, DataRanges ranges,
+                      Variable varl, RowSampler sampler) {
+    this.vary = vary;
+    this.ranges = ranges.snapshot();
+    this.varl = varl;
+    this.sampler = sampler;
+
+    sample = sampler.sample(this.ranges, data.getRowCount());
+    int[] rows = sample.rows;
+    int n = rows.length;
+    valy = new double[n];
+    for (int i = 0; i < n; i++) {
+      valy[i] = vary.getValue(rows[i], this.ranges);
+    }
+    county = vary.getCount(this.ranges);
+  }
+
+  public Variable getVariable() {
+    return vary;
+  }
+
+  public DataRanges getRanges() {
+    return ranges;
+  }
+
+  public Variable getLabelVariable() {
+    return varl;
+  }
+
+  /**
+   * Returns true if the builder gives the same slices as the one built for
+   * the given variables and ranges.
+   */
+  public boolean matches(Variable vary, DataRanges ranges, Variable varl,
+                         RowSampler sampler) {
+    return this.vary == vary && this.varl == varl && this.sampler == sampler &&
+           this.ranges.getVersion() == ranges.getVersion();
+  }
+
+  public DataSlice2D build(Variable varx) {
+    DataSlice2D slice = new DataSlice2D(varx, vary, ranges);
+    slice.init(sample, valy, county, varl);
+    return slice;
+  }
+
+  public DataSlice2D[] build(List<Variable> vars) {
+    DataSlice2D[] slices = new DataSlice2D[vars.size()];
+    for (int i = 0; i < slices.length; i++) {
+      slices[i] = build(vars.get(i));
+    }
+    return slices;
+  }
+}
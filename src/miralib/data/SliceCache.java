@@ -0,0 +1,161 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the slices built from the data, so the slice of a pair of variables
+ * that was just looked at is not calculated again from all the rows. The
+ * slices are identified by their variables and the version of the ranges
+ * they were built with, and the least recently used slices are removed once
+ * the slices in the cache take more than a given number of bytes.
+ *
+ */
+
+public class SliceCache {
+  // Default budget, as a fraction of the maximum heap size
+  final static public float DEFAULT_FRACTION = 0.125f;
+
+  protected long maxBytes;
+  protected long bytes;
+  protected LinkedHashMap<Key, Entry> entries;
+  protected long hits, misses;
+
+  public SliceCache() {
+    this((long)(DEFAULT_FRACTION * Runtime.getRuntime().maxMemory()));
+  }
+
+  public SliceCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    // Access order, so the first entry is the least recently used one
+    entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  }
+
+  synchronized public DataSlice1D get(Variable varx, DataRanges ranges,
+                                      Variable varl) {
+    Entry entry = get(new Key(varx, null, varl, ranges));
+    return entry == null ? null : entry.slice1D;
+  }
+
+  synchronized public DataSlice2D get(Variable varx, Variable vary,
+                                      DataRanges ranges, Variable varl) {
+    Entry entry = get(new Key(varx, vary, varl, ranges));
+    return entry == null ? null : entry.slice2D;
+  }
+
+  synchronized public void put(DataSlice1D slice, Variable varl) {
+    put(new Key(slice.varx, null, varl, slice.ranges),
+        new Entry(slice, slice.byteSize()));
+  }
+
+  synchronized public void put(DataSlice2D slice, Variable varl) {
+    put(new Key(slice.varx, slice.vary, varl, slice.ranges),
+        new Entry(slice, slice.byteSize()));
+  }
+
+  /**
+   * Removes all the slices, needed when the values or the weights of the
+   * variables change.
+   */
+  synchronized public void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  synchronized public int size() {
+    return entries.size();
+  }
+
+  synchronized public long byteSize() {
+    return bytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  synchronized public long getHits() {
+    return hits;
+  }
+
+  synchronized public long getMisses() {
+    return misses;
+  }
+
+  protected Entry get(Key key) {
+    Entry entry = entries.get(key);
+    if (entry == null) misses++;
+    else hits++;
+    return entry;
+  }
+
+  protected void put(Key key, Entry entry) {
+    // Slices larger than the budget would only evict all the others
+    if (maxBytes < entry.bytes) return;
+    entry.share();
+    Entry prev = entries.put(key, entry);
+    if (prev != null) bytes -= prev.bytes;
+    bytes += entry.bytes;
+    Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+    while (maxBytes < bytes && iter.hasNext()) {
+      Map.Entry<Key, Entry> lru = iter.next();
+      if (lru.getValue() == entry) continue;
+      bytes -= lru.getValue().bytes;
+      iter.remove();
+    }
+  }
+
+  static protected class Key {
+    final Variable varx, vary, varl;
+    final long version;
+
+    Key(Variable varx, Variable vary, Variable varl, DataRanges ranges) {
+      this.varx = varx;
+      this.vary = vary;
+      this.varl = varl;
+      this.version = ranges.getVersion();
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) return false;
+      Key that = (Key)obj;
+      return varx == that.varx && vary == that.vary && varl == that.varl &&
+             version == that.version;
+    }
+
+    public int hashCode() {
+      int h = System.identityHashCode(varx);
+      h = 31 * h + System.identityHashCode(vary);
+      h = 31 * h + System.identityHashCode(varl);
+      return 31 * h + (int)(version ^ (version >>> 32));
+    }
+  }
+
+  static protected class Entry {
+    final DataSlice1D slice1D;
+    final DataSlice2D slice2D;
+    final long bytes;
+
+    Entry(DataSlice1D slice, long bytes) {
+      this.slice1D = slice;
+      this.slice2D = null;
+      this.bytes = bytes;
+    }
+
+    Entry(DataSlice2D slice, long bytes) {
+      this.slice1D = null;
+      this.slice2D = slice;
+      this.bytes = bytes;
+    }
+
+    // Once in the cache the slice can be shared, so it is not disposed even
+    // after being evicted
+    void share() {
+      if (slice1D != null) slice1D.cached = true;
+      else slice2D.cached = true;
+    }
+  }
+}
@@ -74,16 +74,31 @@ public class StringVariable extends Variable {
     return value == null || value.equals(missingString);
   }
 
+  public boolean missing(int row) {
+    String value = data.getString(row);
+    return value == null || value.equals(missingString);
+  }
+
   public double getValue(TableRow row, Range sel, boolean normalized) {
     return 0;
   }
 
+  public double getValue(int row, Range sel, boolean normalized) {
+    return 0;
+  }
+
   public String formatValue(TableRow row) {
     String value = row.getString(index);
     if (value == null || value.equals(missingString)) return "missing";
     return value;
   }
 
+  public String formatValue(int row) {
+    String value = data.getString(row);
+    if (value == null || value.equals(missingString)) return "missing";
+    return value;
+  }
+
   public String formatValue(double value, boolean normalized) {
     return "";
   }
@@ -107,4 +122,8 @@ public class StringVariable extends Variable {
   protected double getWeightImpl(TableRow row) {
     return 0;
   }
+
+  protected double getWeightImpl(int row) {
+    return 0;
+  }
 }
@@ -22,12 +22,19 @@ abstract public class Variable implements DataTree.Item {
   final static public int UNDEFINED   = 0;
   final static public int LINEAR      = 1;
   final static public int EXPONENTIAL = 2;
+  // Number of range selections whose rows are kept for each variable
+  final static protected int MAX_CACHED_ROWS = 8;
   
   protected String name;
   protected String alias;  
   protected int index;
   protected Range range;
   protected float missing;
+  protected DataColumn data;
+  protected volatile RowSet missingRows;
+  protected volatile ZoneMap zones;
+  protected ArrayList<Range> cachedRanges;
+  protected ArrayList<RowSet> cachedRows;
   
   protected boolean weight;
   protected boolean subsample;
@@ -85,6 +92,25 @@ abstract public class Variable implements DataTree.Item {
     missingString = str;
   }
   
+  public void setData(DataColumn data) {
+    this.data = data;
+    clearCaches();
+  }
+  
+  /**
+   * Discards everything that was calculated from the values of the column, 
+   * needed when the data or the values that count as missing change.
+   */
+  protected void clearCaches() {
+    missingRows = null;
+    zones = null;
+    clearRows();
+  }
+  
+  public DataColumn getData() {
+    return data;
+  }
+  
   public Range range() { return Range.create(range); }
   
   abstract public Range createRange(double val0, double val1);
@@ -95,12 +121,22 @@ abstract public class Variable implements DataTree.Item {
   public void initRange(Table data) {
     range.reset();
     for (int r = 0; r < data.getRowCount(); r++) {
-      TableRow row = data.getRow(r);
-      if (missing(row)) continue;
-      range.update(row);
+      if (missing(r)) continue;
+      range.update(r);
     }
   }
   
+  /**
+   * Initializes the range from the precomputed stats of the column, instead 
+   * of going through all the rows.
+   */
+  public void initRange(ColumnStats stats) {
+    range.reset();
+    range.set(stats);
+    int size = data == null ? 0 : data.size();
+    missing = 0 < size ? (float)stats.missing / size : 0;
+  }
+  
   public int getScaling(DataSlice1D slice, Project prefs) {
     int scaling = LINEAR;
     int bcount = BinOptimizer.calculate(slice, prefs.binAlgorithm);
@@ -110,10 +146,10 @@ abstract public class Variable implements DataTree.Item {
     double[] weightSum = new double[bcount];
     Arrays.fill(weightSum, 0);
     double totWeight = 0;
-    for (Value1D value: slice.values) {      
-      int bin = Numbers.constrain((int)(value.x / bsize), 0, bcount - 1);      
-      weightSum[bin] += value.w;
-      totWeight += value.w;
+    for (int i = 0; i < slice.size; i++) {      
+      int bin = Numbers.constrain((int)(slice.x[i] / bsize), 0, bcount - 1);      
+      weightSum[bin] += slice.w[i];
+      totWeight += slice.w[i];
     }
     for (int bin = 0; bin < bcount; bin++) {
       if (weightSum[bin] / totWeight > 0.9) {
@@ -217,6 +253,14 @@ abstract public class Variable implements DataTree.Item {
   abstract public boolean categorical();
   abstract public boolean string();
   
+  /**
+   * Fraction of missing values in the entire data, as found when the range 
+   * was initialized.
+   */
+  public float getMissing() {
+    return missing;
+  }
+  
   public long getCount() {
     return range.getCount();
   }
@@ -230,6 +274,82 @@ abstract public class Variable implements DataTree.Item {
   }
   
   abstract public boolean missing(TableRow row);  
+  abstract public boolean missing(int row);
+  
+  /**
+   * Rows where the value of the variable is missing, found with a single scan
+   * of the column the first time they are needed.
+   */
+  public RowSet getMissingRows() {
+    RowSet rows = missingRows;
+    if (rows == null) {
+      int size = data.size();
+      rows = new RowSet();
+      for (int r = 0; r < size; r++) {
+        if (missingValue(r)) rows.add(r);
+      }
+      missingRows = rows.optimize();
+    }
+    return rows;
+  }
+  
+  public int getMissingCount() {
+    return getMissingRows().cardinality();
+  }
+  
+  /**
+   * Summaries of the zones of rows of the data, calculated the first time 
+   * that a range of the variable is selected.
+   */
+  public ZoneMap getZoneMap() {
+    ZoneMap map = zones;
+    if (map == null) {
+      map = ZoneMap.calculate(data, type() == MiraTable.DATE);
+      zones = map;
+    }
+    return map;
+  }
+  
+  /**
+   * Rows inside the given range of the variable. The row sets are cached by
+   * the value of the range, so all the selections that share it don't need to
+   * scan the column again.
+   */
+  synchronized public RowSet getRows(Range sel) {
+    if (cachedRanges == null) clearRows();
+    for (int i = 0; i < cachedRanges.size(); i++) {
+      if (cachedRanges.get(i).equals(sel)) {
+        // Moving the range to the front, as the least recently used ones are
+        // the first to be discarded
+        Range range = cachedRanges.remove(i);
+        RowSet rows = cachedRows.remove(i);
+        cachedRanges.add(0, range);
+        cachedRows.add(0, rows);
+        return rows;
+      }
+    }
+    RowSet rows = sel.selectRows();
+    // Storing a copy, since the ranges are modified by the interface
+    cachedRanges.add(0, Range.create(sel));
+    cachedRows.add(0, rows);
+    if (MAX_CACHED_ROWS < cachedRanges.size()) {
+      cachedRanges.remove(MAX_CACHED_ROWS);
+      cachedRows.remove(MAX_CACHED_ROWS);
+    }
+    return rows;
+  }
+  
+  synchronized protected void clearRows() {
+    cachedRanges = new ArrayList<Range>();
+    cachedRows = new ArrayList<RowSet>();
+  }
+  
+  /**
+   * Checks the value stored in the column, used to build the missing rows.
+   */
+  protected boolean missingValue(int row) {
+    return missing(row);
+  }
   
   public boolean maxRange(Range sel) { return range.equals(sel); }
   
@@ -249,7 +369,18 @@ abstract public class Variable implements DataTree.Item {
     return getValue(row, sel, true);
   }  
   abstract public double getValue(TableRow row, Range sel, boolean normalized);
+  
+  public double getValue(int row, DataRanges ranges) {
+    return getValue(row, ranges.get(this), true);
+  }
+  
+  public double getValue(int row, Range sel) {
+    return getValue(row, sel, true);
+  }
+  abstract public double getValue(int row, Range sel, boolean normalized);
+  
   abstract public String formatValue(TableRow row);
+  abstract public String formatValue(int row);
   public String formatValue(double value) {
     return formatValue(value, true);  
   }
@@ -321,6 +452,14 @@ abstract public class Variable implements DataTree.Item {
     }
   }
   
+  public double getWeight(int row) {
+    if (weightVar != null) {
+      return weightVar.getWeightImpl(row);
+    } else {
+      return 1d;
+    }
+  }
+  
   public boolean insideSample(TableRow row) {
     if (weight) {
       return 0 < getWeightImpl(row);
@@ -331,7 +470,18 @@ abstract public class Variable implements DataTree.Item {
     }
   } 
   
+  public boolean insideSample(int row) {
+    if (weight) {
+      return 0 < getWeightImpl(row);
+    } else if (weightVar != null) {
+      return !weightVar.missing(row) && 0 < weightVar.getWeightImpl(row);
+    } else {
+      return true;
+    }
+  }
+  
   abstract protected double getWeightImpl(TableRow row);
+  abstract protected double getWeightImpl(int row);
     
   static public int getType(String name) {
     if (name.equals("int") || name.equals("integer")) {
@@ -384,4 +534,22 @@ abstract public class Variable implements DataTree.Item {
       return 1d; 
     }     
   }
+  
+  static public double getWeight(int row, Variable varx, Variable vary) {
+    if (varx.weight() || vary.weight()) {
+      return 1d;
+    } else if (!varx.weighted() || !vary.weighted()) {
+      return varx.weighted() ? varx.getWeight(row) : vary.getWeight(row);        
+    } else if (varx.subsample() && vary.subsample()) {
+      return 0d; // subsamples are not comparable
+    } else if (!varx.subsample() && !vary.subsample()) {
+      return Math.min(varx.getWeight(row), vary.getWeight(row));
+    } else if (varx.subsample()) {
+      return varx.getWeight(row);
+    } else if (vary.subsample()) {
+      return vary.getWeight(row);
+    } else {
+      return 1d; 
+    }     
+  }
 }
@@ -0,0 +1,151 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.BitSet;
+
+import processing.data.Table;
+
+/**
+ * Summaries of consecutive blocks (zones) of rows of a column: the minimum,
+ * maximum and number of valid dates in each zone for the date columns, and the
+ * category codes present in each zone for the categorical columns. A range can
+ * rule out or accept an entire zone from its summary, and only needs to check
+ * the rows of the zones that are partially inside the range. This is very
+ * effective with sorted or clustered columns, such as dates and identifiers.
+ *
+ */
+
+public class ZoneMap {
+  final static public int ZONE_SIZE = 4096;
+
+  // Overlap between a range and a zone
+  final static public int NONE = 0;
+  final static public int SOME = 1;
+  final static public int ALL  = 2;
+
+  protected int size;
+  protected int zoneCount;
+
+  // Date columns
+  protected long[] min, max;
+  protected int[] count;
+
+  // Categorical columns, with ncat + 1 bits per zone: one for each code in the
+  // dictionary and the last one for missing values or codes outside of it
+  protected int ncat;
+  protected long[] codes;
+
+  protected ZoneMap(int size) {
+    this.size = size;
+    zoneCount = (size + ZONE_SIZE - 1) / ZONE_SIZE;
+  }
+
+  /**
+   * Calculates the zones of all the rows of the column. Only the zone
+   * boundaries are kept for the columns that are neither dates nor
+   * categorical.
+   */
+  static public ZoneMap calculate(DataColumn column, boolean date) {
+    ZoneMap map = new ZoneMap(column.size());
+    if (date) {
+      map.calculateDates(column);
+    } else if (column.type() == Table.CATEGORY) {
+      map.calculateCodes(column);
+    }
+    return map;
+  }
+
+  protected void calculateDates(DataColumn column) {
+    min = new long[zoneCount];
+    max = new long[zoneCount];
+    count = new int[zoneCount];
+    for (int zone = 0; zone < zoneCount; zone++) {
+      long zmin = Long.MAX_VALUE;
+      long zmax = Long.MIN_VALUE;
+      int zcount = 0;
+      int last = getLastRow(zone);
+      for (int r = getFirstRow(zone); r <= last; r++) {
+        long millis = column.getLong(r);
+        if (millis == DateVariable.MISSING_DATE) continue;
+        if (millis < zmin) zmin = millis;
+        if (zmax < millis) zmax = millis;
+        zcount++;
+      }
+      min[zone] = zmin;
+      max[zone] = zmax;
+      count[zone] = zcount;
+    }
+  }
+
+  protected void calculateCodes(DataColumn column) {
+    ncat = column.getCategoryCount();
+    codes = new long[(int)(((long)zoneCount * (ncat + 1) + 63) >>> 6)];
+    for (int zone = 0; zone < zoneCount; zone++) {
+      long bit0 = (long)zone * (ncat + 1);
+      int last = getLastRow(zone);
+      for (int r = getFirstRow(zone); r <= last; r++) {
+        int code = column.getInt(r);
+        long bit = bit0 + (0 <= code && code < ncat ? code : ncat);
+        codes[(int)(bit >>> 6)] |= 1L << bit;
+      }
+    }
+  }
+
+  public int getZoneCount() {
+    return zoneCount;
+  }
+
+  public int getFirstRow(int zone) {
+    return zone * ZONE_SIZE;
+  }
+
+  public int getLastRow(int zone) {
+    return Math.min(size, (zone + 1) * ZONE_SIZE) - 1;
+  }
+
+  public int getRowCount(int zone) {
+    return getLastRow(zone) - getFirstRow(zone) + 1;
+  }
+
+  /**
+   * Finds if the dates in the zone are all, some or none between min and max
+   * (both inclusive). Always SOME if the column is not a date.
+   */
+  public int overlap(int zone, long min, long max) {
+    if (count == null) return SOME;
+    if (count[zone] == 0 || this.max[zone] < min || max < this.min[zone]) {
+      return NONE;
+    }
+    if (min <= this.min[zone] && this.max[zone] <= max &&
+        count[zone] == getRowCount(zone)) {
+      // No missing dates and all the dates inside the range
+      return ALL;
+    }
+    return SOME;
+  }
+
+  /**
+   * Finds if the codes in the zone are all, some or none members of the
+   * given set. Always SOME if the column is not categorical, or if the zone
+   * has missing values or codes outside the dictionary.
+   */
+  public int overlap(int zone, BitSet members) {
+    if (codes == null) return SOME;
+    long bit0 = (long)zone * (ncat + 1);
+    if (hasCode(bit0 + ncat)) return SOME;
+    boolean inside = false;
+    boolean outside = false;
+    for (int code = 0; code < ncat; code++) {
+      if (!hasCode(bit0 + code)) continue;
+      if (members.get(code)) inside = true;
+      else outside = true;
+      if (inside && outside) return SOME;
+    }
+    return inside ? ALL : NONE;
+  }
+
+  protected boolean hasCode(long bit) {
+    return (codes[(int)(bit >>> 6)] & (1L << bit)) != 0;
+  }
+}
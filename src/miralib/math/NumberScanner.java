@@ -0,0 +1,295 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.math;
+
+/**
+ * Classifies and parses a number in a single pass over its characters, without
+ * creating wrapper objects or using exceptions to reject invalid input. The
+ * accepted syntax is the same of Integer.parseInt(), Long.parseLong() and
+ * Double.parseDouble(): integers are only recognized when the text has no
+ * surrounding whitespace, while decimal numbers can also have whitespace,
+ * exponents, type suffixes, hexadecimal notation, NaN and Infinity.
+ *
+ */
+
+public class NumberScanner {
+  final static public int NONE   = 0;
+  final static public int INT    = 1;
+  final static public int LONG   = 2;
+  final static public int FLOAT  = 3;
+  final static public int DOUBLE = 4;
+
+  // Significant digits that can be accumulated without overflowing a long
+  final static protected int MAX_DIGITS = 18;
+
+  // Powers of ten that are exactly representable as doubles and floats, so
+  // a single multiplication or division gives the correctly rounded result
+  final static protected double[] DOUBLE_POW10 = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+  final static protected float[] FLOAT_POW10 = {
+    1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+  };
+
+  protected CharSequence text;
+  protected int start, end;
+
+  protected int type;
+  protected boolean negative;
+  protected boolean special; // NaN or Infinity
+  protected boolean hex;
+  protected long integer;    // value of integers
+  protected long mantissa;   // significant digits of decimal numbers
+  protected int exponent;    // decimal exponent of the mantissa
+  protected boolean exact;   // true if no significant digits were dropped
+  protected double value;
+
+  public int scan(CharSequence str) {
+    if (str == null) return none();
+    return scan(str, 0, str.length());
+  }
+
+  /**
+   * Scans the characters between from (inclusive) and to (exclusive) and
+   * returns the narrowest type that can hold the number: INT or LONG for
+   * integers, FLOAT or DOUBLE (only when the number is outside the range of
+   * floats) for decimal numbers, or NONE if the text is not a number.
+   */
+  public int scan(CharSequence str, int from, int to) {
+    text = str;
+    start = from;
+    end = to;
+    negative = false;
+    special = false;
+    hex = false;
+    integer = 0;
+    mantissa = 0;
+    exponent = 0;
+    exact = true;
+    value = 0;
+
+    int i = from;
+    int n = to;
+    while (i < n && str.charAt(i) <= ' ') i++;
+    while (i < n && str.charAt(n - 1) <= ' ') n--;
+    boolean trimmed = i != from || n != to;
+    if (i == n) return none();
+
+    char c = str.charAt(i);
+    if (c == '-' || c == '+') {
+      negative = c == '-';
+      i++;
+      if (i == n) return none();
+      c = str.charAt(i);
+    }
+
+    if (c == 'N' || c == 'I') {
+      special = true;
+      if (matches(str, i, n, "NaN")) {
+        value = Double.NaN;
+      } else if (matches(str, i, n, "Infinity")) {
+        value = negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+      } else {
+        return none();
+      }
+      return type = FLOAT;
+    }
+
+    if (c == '0' && i + 1 < n &&
+        (str.charAt(i + 1) == 'x' || str.charAt(i + 1) == 'X')) {
+      return scanHex(str, i + 2, n);
+    }
+
+    // Integer part, accumulated both as an exact integer (as a negative
+    // number, like Long.parseLong() does, to reach Long.MIN_VALUE) and as the
+    // mantissa of a decimal number
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multmin = limit / 10;
+    long acc = 0;
+    boolean overflow = false;
+    int ndigits = 0;
+    int sdigits = 0;
+    for (; i < n; i++) {
+      c = str.charAt(i);
+      if (c < '0' || '9' < c) break;
+      int d = c - '0';
+      ndigits++;
+      if (!overflow) {
+        if (acc < multmin) {
+          overflow = true;
+        } else {
+          acc *= 10;
+          if (acc < limit + d) overflow = true;
+          else acc -= d;
+        }
+      }
+      if (sdigits < MAX_DIGITS) {
+        mantissa = 10 * mantissa + d;
+        if (0 < mantissa) sdigits++;
+      } else {
+        exponent++;
+        if (d != 0) exact = false;
+      }
+    }
+
+    boolean decimal = false;
+    if (i < n && str.charAt(i) == '.') {
+      decimal = true;
+      for (i++; i < n; i++) {
+        c = str.charAt(i);
+        if (c < '0' || '9' < c) break;
+        int d = c - '0';
+        ndigits++;
+        if (sdigits < MAX_DIGITS) {
+          mantissa = 10 * mantissa + d;
+          exponent--;
+          if (0 < mantissa) sdigits++;
+        } else if (d != 0) {
+          exact = false;
+        }
+      }
+    }
+    if (ndigits == 0) return none();
+
+    if (i < n && (str.charAt(i) == 'e' || str.charAt(i) == 'E')) {
+      decimal = true;
+      i = scanExponent(str, i + 1, n);
+      if (i < 0) return none();
+    }
+
+    if (i < n && suffix(str.charAt(i))) {
+      decimal = true;
+      i++;
+    }
+    if (i != n) return none();
+
+    if (!decimal && !trimmed && !overflow) {
+      integer = negative ? acc : -acc;
+      value = integer;
+      if (Integer.MIN_VALUE <= integer && integer <= Integer.MAX_VALUE) {
+        return type = INT;
+      } else {
+        return type = LONG;
+      }
+    }
+
+    value = toDouble();
+    return type = decimalType(value);
+  }
+
+  public int type() {
+    return type;
+  }
+
+  public int intValue() {
+    if (type == INT || type == LONG) return (int)integer;
+    return (int)value;
+  }
+
+  public long longValue() {
+    if (type == INT || type == LONG) return integer;
+    return (long)value;
+  }
+
+  public float floatValue() {
+    if (type == INT || type == LONG) return integer;
+    if (type == NONE) return Float.NaN;
+    if (special) return (float)value;
+    if (hex) return Float.parseFloat(text.subSequence(start, end).toString());
+    if (mantissa == 0) return negative ? -0.0f : 0.0f;
+    if (exact && mantissa < (1L << 24) &&
+        -FLOAT_POW10.length < exponent && exponent < FLOAT_POW10.length) {
+      float f = exponent < 0 ? mantissa / FLOAT_POW10[-exponent] :
+                               mantissa * FLOAT_POW10[exponent];
+      return negative ? -f : f;
+    }
+    // The float must be rounded directly from the text, rounding the double
+    // value again could give a different result
+    return Float.parseFloat(text.subSequence(start, end).toString());
+  }
+
+  public double doubleValue() {
+    if (type == NONE) return Double.NaN;
+    return value;
+  }
+
+  protected int none() {
+    value = Double.NaN;
+    return type = NONE;
+  }
+
+  protected double toDouble() {
+    if (mantissa == 0) return negative ? -0.0 : 0.0;
+    if (exact && mantissa < (1L << 53) &&
+        -DOUBLE_POW10.length < exponent && exponent < DOUBLE_POW10.length) {
+      double d = exponent < 0 ? mantissa / DOUBLE_POW10[-exponent] :
+                                mantissa * DOUBLE_POW10[exponent];
+      return negative ? -d : d;
+    }
+    // Rare case, the syntax is already validated so this doesn't throw
+    return Double.parseDouble(text.subSequence(start, end).toString());
+  }
+
+  protected int decimalType(double value) {
+    double abs = Math.abs(value);
+    if (Float.MAX_VALUE < abs && !Double.isInfinite(abs)) return DOUBLE;
+    if (0 < abs && abs < Float.MIN_VALUE) return DOUBLE;
+    return FLOAT;
+  }
+
+  protected int scanExponent(CharSequence str, int i, int n) {
+    boolean neg = false;
+    if (i < n && (str.charAt(i) == '-' || str.charAt(i) == '+')) {
+      neg = str.charAt(i) == '-';
+      i++;
+    }
+    int exp = 0;
+    int digits = 0;
+    for (; i < n; i++) {
+      char c = str.charAt(i);
+      if (c < '0' || '9' < c) break;
+      // Capping the exponent, anything this large is zero or infinity anyways
+      if (exp < 100000) exp = 10 * exp + (c - '0');
+      digits++;
+    }
+    if (digits == 0) return -1;
+    exponent += neg ? -exp : exp;
+    return i;
+  }
+
+  protected int scanHex(CharSequence str, int i, int n) {
+    int digits = 0;
+    for (; i < n && hexDigit(str.charAt(i)); i++) digits++;
+    if (i < n && str.charAt(i) == '.') {
+      for (i++; i < n && hexDigit(str.charAt(i)); i++) digits++;
+    }
+    if (digits == 0) return none();
+    // The binary exponent is required in hexadecimal floating point numbers
+    if (i == n || (str.charAt(i) != 'p' && str.charAt(i) != 'P')) return none();
+    i = scanExponent(str, i + 1, n);
+    if (i < 0) return none();
+    if (i < n && suffix(str.charAt(i))) i++;
+    if (i != n) return none();
+    hex = true;
+    value = Double.parseDouble(str.subSequence(start, end).toString());
+    return type = decimalType(value);
+  }
+
+  static protected boolean hexDigit(char c) {
+    return ('0' <= c && c <= '9') || ('a' <= c && c <= 'f') ||
+           ('A' <= c && c <= 'F');
+  }
+
+  static protected boolean suffix(char c) {
+    return c == 'f' || c == 'F' || c == 'd' || c == 'D';
+  }
+
+  static protected boolean matches(CharSequence str, int i, int n, String word) {
+    if (n - i != word.length()) return false;
+    for (int k = 0; k < word.length(); k++) {
+      if (str.charAt(i + k) != word.charAt(k)) return false;
+    }
+    return true;
+  }
+}
@@ -122,14 +122,12 @@ public class Numbers {
   }
 
   static final public int parseInt(String what, int otherwise) {
-    try {
-      int offset = what.indexOf('.');
-      if (offset == -1) {
-        return Integer.parseInt(what);
-      } else {
-        return Integer.parseInt(what.substring(0, offset));
-      }
-    } catch (NumberFormatException e) { }
+    // As in PApplet.parseInt(), the decimal part is ignored
+    if (what == null) return otherwise;
+    int offset = what.indexOf('.');
+    NumberScanner scanner = new NumberScanner();
+    int type = scanner.scan(what, 0, offset == -1 ? what.length() : offset);
+    if (type == NumberScanner.INT) return scanner.intValue();
     return otherwise;
   } 
   
@@ -138,11 +136,9 @@ public class Numbers {
   }
 
   static final public float parseFloat(String what, float otherwise) {
-    try {
-      return new Float(what).floatValue();
-    } catch (NumberFormatException e) { }
-
-    return otherwise;
+    NumberScanner scanner = new NumberScanner();
+    if (scanner.scan(what) == NumberScanner.NONE) return otherwise;
+    return scanner.floatValue();
   }  
   
   static public long parseLong(String what) {
@@ -150,14 +146,13 @@ public class Numbers {
   }  
   
   static public long parseLong(String what, int otherwise) {
-    try {
-      int offset = what.indexOf('.');
-      if (offset == -1) {
-        return Long.parseLong(what);
-      } else {
-        return Long.parseLong(what.substring(0, offset));
-      }
-    } catch (NumberFormatException e) { }
+    if (what == null) return otherwise;
+    int offset = what.indexOf('.');
+    NumberScanner scanner = new NumberScanner();
+    int type = scanner.scan(what, 0, offset == -1 ? what.length() : offset);
+    if (type == NumberScanner.INT || type == NumberScanner.LONG) {
+      return scanner.longValue();
+    }
     return otherwise;
   }  
   
@@ -166,10 +161,9 @@ public class Numbers {
   }
 
   static public double parseDouble(String what, double otherwise) {
-    try {
-      return new Double(what).doubleValue();
-    } catch (NumberFormatException e) { }
-    return otherwise;
+    NumberScanner scanner = new NumberScanner();
+    if (scanner.scan(what) == NumberScanner.NONE) return otherwise;
+    return scanner.doubleValue();
   }
   
   static public String nfc(int num) {
@@ -2,13 +2,9 @@
 
 package miralib.shannon;
 
-import java.util.ArrayList;
-
 import processing.core.PApplet;
 import miralib.data.DataSlice1D;
 import miralib.data.DataSlice2D;
-import miralib.data.Value1D;
-import miralib.data.Value2D;
 import miralib.math.Numbers;
 import miralib.utils.Log;
 
@@ -39,7 +35,7 @@ public class BinOptimizer {
   static public int calculate(DataSlice1D slice, int method) {
     if (slice.varx.categorical()) return (int)slice.countx;
       
-    int size = slice.values.size();    
+    int size = slice.size;    
     int hsize = size / 2;
         
     int minNBins, maxNBins;
@@ -49,7 +45,7 @@ public class BinOptimizer {
       minNBins = 2;
       long lcount = slice.countx;
       int icount = Integer.MAX_VALUE < lcount ? Integer.MAX_VALUE : (int)lcount;
-      float res = (float)res(slice.values);
+      float res = (float)res(slice.x, slice.size);
       maxNBins = Numbers.min((int)(1.0f/res) + 1, icount, hsize);
     }
     
@@ -79,7 +75,7 @@ public class BinOptimizer {
     for (int i = 0; i < numValues; i += mod) {
       int n = minNBins + i;
       float bsize = 1.0f / n;
-      double[] counts = hist1D(slice.values, n);
+      double[] counts = hist1D(slice, n);
       
       float c = 0;
       if (method == POISSON) {
@@ -101,7 +97,7 @@ public class BinOptimizer {
       return new int[] {(int)slice.countx, (int)slice.county};
     }
     
-    int size = slice.values.size();
+    int size = slice.size;
     int sqsize = (int)Math.sqrt(size / 2);
     
     int minNBins0, maxNBins0;
@@ -113,7 +109,7 @@ public class BinOptimizer {
       minNBins0 = 2;
       long lcount = slice.countx;
       int icount = Integer.MAX_VALUE < lcount ? Integer.MAX_VALUE : (int)lcount;
-      float res = (float)resx(slice.values);   
+      float res = (float)res(slice.x, slice.size);   
       maxNBins0 = Numbers.min((int)(1.0f/res) + 1, icount, sqsize);
     }
     
@@ -126,7 +122,7 @@ public class BinOptimizer {
       minNBins1 = 2;
       long lcount = slice.county;
       int icount = Integer.MAX_VALUE < lcount ? Integer.MAX_VALUE : (int)lcount;
-      float res = (float)resy(slice.values);            
+      float res = (float)res(slice.y, slice.size);            
       maxNBins1 = Numbers.min((int)(1.0f/res) + 1, icount, sqsize);
     }
     
@@ -169,7 +165,7 @@ public class BinOptimizer {
       float bsize0 = 1.0f / n0; 
       float bsize1 = 1.0f / n1;
       float barea = bsize0 * bsize1;          
-      double[][] counts = hist2D(slice.values, n0, n1);
+      double[][] counts = hist2D(slice, n0, n1);
       
       float c = 0;
       if (method == POISSON) {
@@ -215,29 +211,26 @@ public class BinOptimizer {
     return cost;  
   }
 
-  static public double[] hist1D(ArrayList<Value1D> values, int bnum) {    
+  static public double[] hist1D(DataSlice1D slice, int bnum) {    
     double[] counts = new double[bnum];
     float bsize = 1.0f / bnum;
-    int mod = Math.max(1, values.size() / MAX_HIST_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value1D value = values.get(i);
-      int bin = Numbers.constrain((int)(value.x / bsize), 0, bnum - 1);
-      counts[bin] += value.w;
+    int mod = Math.max(1, slice.size / MAX_HIST_SAMPLE_SIZE);
+    for (int i = 0; i < slice.size; i += mod) {
+      int bin = Numbers.constrain((int)(slice.x[i] / bsize), 0, bnum - 1);
+      counts[bin] += slice.w[i];
     }
     return counts; 
   }
 
-  static public double[][] hist2D(ArrayList<Value2D> values,                                
-                                  int bnumx, int bnumy) {
+  static public double[][] hist2D(DataSlice2D slice, int bnumx, int bnumy) {
     double[][] counts = new double[bnumx][bnumy];
     float bsizex = 1.0f / bnumx; 
     float bsizey = 1.0f / bnumy; 
-    int mod = Math.max(1, values.size() / MAX_HIST_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value2D value = values.get(i);
-      int binx = Numbers.constrain((int)(value.x / bsizex), 0, bnumx - 1);
-      int biny = Numbers.constrain((int)(value.y / bsizey), 0, bnumy - 1);    
-      counts[binx][biny] += value.w;
+    int mod = Math.max(1, slice.size / MAX_HIST_SAMPLE_SIZE);
+    for (int i = 0; i < slice.size; i += mod) {
+      int binx = Numbers.constrain((int)(slice.x[i] / bsizex), 0, bnumx - 1);
+      int biny = Numbers.constrain((int)(slice.y[i] / bsizey), 0, bnumy - 1);    
+      counts[binx][biny] += slice.w[i];
     }
     return counts; 
   }
@@ -269,14 +262,17 @@ public class BinOptimizer {
     return sumsq;
   }
   
-  static protected double res(ArrayList<Value1D> values) {
+  /**
+   * Smallest non-zero difference between a sample of the values and all the
+   * other values.
+   */
+  static protected double res(double[] values, int size) {
     double res = Double.POSITIVE_INFINITY;
-    int mod = Math.max(1, values.size() / MAX_RES_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value1D vali = values.get(i);
-      for (int j = 0; j < values.size(); j++) {
-        Value1D valj = values.get(j);
-        double diff = Math.abs(valj.x - vali.x);
+    int mod = Math.max(1, size / MAX_RES_SAMPLE_SIZE);
+    for (int i = 0; i < size; i += mod) {
+      double vali = values[i];
+      for (int j = 0; j < size; j++) {
+        double diff = Math.abs(values[j] - vali);
         if (0 < diff) {
           res = Math.min(res, diff);
         }        
@@ -319,38 +315,6 @@ public class BinOptimizer {
     return sumsq;
   } 
   
-  static protected double resx(ArrayList<Value2D> values) {
-    double res = Double.POSITIVE_INFINITY;
-    int mod = Math.max(1, values.size() / MAX_RES_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value2D vali = values.get(i);
-      for (int j = 0; j < values.size(); j++) {
-        Value2D valj = values.get(j);
-        double diff = Math.abs(valj.x - vali.x);
-        if (0 < diff) {
-          res = Math.min(res, diff);
-        }        
-      }
-    }
-    return Math.max(res, 1.0d / MAX_HIST_BINS);
-  }  
-
-  static protected double resy(ArrayList<Value2D> values) {
-    double res = Double.POSITIVE_INFINITY;
-    int mod = Math.max(1, values.size() / MAX_RES_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value2D vali = values.get(i);
-      for (int j = 0; j < values.size(); j++) {
-        Value2D valj = values.get(j);
-        double diff = Math.abs(valj.y - vali.y);
-        if (0 < diff) {
-          res = Math.min(res, diff);
-        }        
-      }
-    }    
-    return Math.max(res, 1.0d / MAX_HIST_BINS);
-  }
-    
   static public String algorithmToString(int algo) {
     if (algo == RICE) {
       return "RICE";
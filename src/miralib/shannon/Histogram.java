@@ -2,9 +2,8 @@ package miralib.shannon;
 
 import java.util.ArrayList;
 
+import miralib.data.BinCodes;
 import miralib.data.DataSlice2D;
-import miralib.data.Value2D;
-import miralib.math.Numbers;
 import miralib.utils.Project;
 
 public class Histogram {
@@ -21,14 +20,14 @@ public class Histogram {
   static public ArrayList<ArrayList<Double>> calculate(DataSlice2D slice, int nbinx, int nbiny) {
     if (nbinx < 2 || nbiny < 2) return null;
     
-    float sbinx = 1.0f / nbinx;
-    float sbiny = 1.0f / nbiny;
     double[][] counts = new double[nbinx][nbiny];
     
-    for (Value2D value: slice.values) {
-      int bx = Numbers.constrain((int)(value.x / sbinx), 0, nbinx - 1);  
-      int by = Numbers.constrain((int)(value.y / sbiny), 0, nbiny - 1);  
-      counts[bx][by] += value.w;
+    BinCodes codesx = slice.getCodesX(nbinx);
+    BinCodes codesy = slice.getCodesY(nbiny);
+    for (int i = 0; i < slice.size; i++) {
+      int bx = codesx.get(i);  
+      int by = codesy.get(i);  
+      counts[bx][by] += slice.w[i];
     }
     
     ArrayList<ArrayList<Double>> hist = new ArrayList<ArrayList<Double>>();
@@ -46,14 +45,14 @@ public class Histogram {
   static public int[][] calculate2DArray(DataSlice2D slice, int nbinx, int nbiny) {
 	    if (nbinx < 2 || nbiny < 2) return null;
 	    
-	    float sbinx = 1.0f / nbinx;
-	    float sbiny = 1.0f / nbiny;
 	    int[][] counts = new int[nbinx][nbiny];
 	    
-	    for (Value2D value: slice.values) {
-	      int bx = Numbers.constrain((int)(value.x / sbinx), 0, nbinx - 1);  
-	      int by = Numbers.constrain((int)(value.y / sbiny), 0, nbiny - 1);  
-	      counts[bx][by] += value.w;
+	    BinCodes codesx = slice.getCodesX(nbinx);
+	    BinCodes codesy = slice.getCodesY(nbiny);
+	    for (int i = 0; i < slice.size; i++) {
+	      int bx = codesx.get(i);  
+	      int by = codesy.get(i);  
+	      counts[bx][by] += slice.w[i];
 	    }
 	    return counts;
 	  }
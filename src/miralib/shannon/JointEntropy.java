@@ -2,9 +2,8 @@
 
 package miralib.shannon;
 
+import miralib.data.BinCodes;
 import miralib.data.DataSlice2D;
-import miralib.data.Value2D;
-import miralib.math.Numbers;
 import miralib.utils.Project;
 
 /**
@@ -21,16 +20,17 @@ public class JointEntropy {
   static public float calculate(DataSlice2D slice, int nbinx, int nbiny) {
     if (nbinx < 2 || nbiny < 2) return 0;
     
-    float sbinx = 1.0f / nbinx;
-    float sbiny = 1.0f / nbiny;
     double[][] counts = new double[nbinx][nbiny];
     
     double total = 0;
-    for (Value2D value: slice.values) {
-      int bx = Numbers.constrain((int)(value.x / sbinx), 0, nbinx - 1);  
-      int by = Numbers.constrain((int)(value.y / sbiny), 0, nbiny - 1);  
-      counts[bx][by] += value.w;
-      total += value.w;
+    BinCodes codesx = slice.getCodesX(nbinx);
+    BinCodes codesy = slice.getCodesY(nbiny);
+    double[] w = slice.w;
+    for (int i = 0; i < slice.size; i++) {
+      int bx = codesx.get(i);  
+      int by = codesy.get(i);  
+      counts[bx][by] += w[i];
+      total += w[i];
     }
     
     double entropy = 0;
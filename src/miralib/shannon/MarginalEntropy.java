@@ -2,9 +2,8 @@
 
 package miralib.shannon;
 
+import miralib.data.BinCodes;
 import miralib.data.DataSlice1D;
-import miralib.data.Value1D;
-import miralib.math.Numbers;
 import miralib.utils.Project;
 
 /**
@@ -21,14 +20,15 @@ public class MarginalEntropy {
   static public float calculate(DataSlice1D slice, int nbin) {
     if (nbin < 2) return 0;
     
-    float sbin = 1.0f / nbin;
     double[] counts = new double[nbin];
     
     double total = 0;
-    for (Value1D value: slice.values) {
-      int bx = Numbers.constrain((int)(value.x / sbin), 0, nbin - 1);    
-      counts[bx] += value.w;
-      total += value.w;
+    BinCodes codes = slice.getCodes(nbin);
+    double[] w = slice.w;
+    for (int i = 0; i < slice.size; i++) {
+      int bx = codes.get(i);    
+      counts[bx] += w[i];
+      total += w[i];
     }
           
     double entropy = 0;
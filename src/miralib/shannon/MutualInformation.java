@@ -2,8 +2,8 @@
 
 package miralib.shannon;
 
+import miralib.data.BinCodes;
 import miralib.data.DataSlice2D;
-import miralib.data.Value2D;
 import miralib.utils.Project;
 
 /**
@@ -21,8 +21,6 @@ public class MutualInformation {
   static public float calculate(DataSlice2D slice, int nbinx, int nbiny) {
     if (nbinx < 2 || nbiny < 2) return 0;
     
-    float sbinx = 1.0f / nbinx;
-    float sbiny = 1.0f / nbiny;
     double[] countsx = new double[nbinx];
     double[] countsy = new double[nbiny];    
     double[][] counts = new double[nbinx][nbiny];
@@ -32,18 +30,16 @@ public class MutualInformation {
     int lastbx = -1;
     int lastby = -1;   
     double total = 0;
-    for (Value2D value: slice.values) {
-      int bx = (int)Math.min(value.x / sbinx, nbinx - 1);  
-      int by = (int)Math.min(value.y / sbiny, nbiny - 1);
+    BinCodes codesx = slice.getCodesX(nbinx);
+    BinCodes codesy = slice.getCodesY(nbiny);
+    double[] w = slice.w;
+    for (int i = 0; i < slice.size; i++) {
+      int bx = codesx.get(i);  
+      int by = codesy.get(i);
       
-      if (bx < 0 || by < 0) {
-        System.err.println("Error: a bin index is negative: " + bx + " " + nbinx + "| " + by + " " + nbiny);
-        continue;
-      }
-      
-      counts[bx][by] += value.w;
-      countsx[bx] += value.w;
-      countsy[by] += value.w;
+      counts[bx][by] += w[i];
+      countsx[bx] += w[i];
+      countsy[by] += w[i];
       
       if (lastbx != -1 && lastbx != bx) {
         singlebx = false;
@@ -54,7 +50,7 @@ public class MutualInformation {
       
       lastbx = bx;
       lastby = by;        
-      total += value.w;
+      total += w[i];
     }
     
     // Pairs with a only one occupied bin along X or Y are considered 
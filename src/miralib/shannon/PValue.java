@@ -18,7 +18,7 @@ public class PValue {
       return new float[] {0, 0};
     } 
         
-    int count = slice.values.size();
+    int count = slice.size;
     int[] res = BinOptimizer.calculate(slice, prefs.binAlgorithm);
     int binx = res[0];
     int biny = res[1];
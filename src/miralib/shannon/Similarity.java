@@ -8,12 +8,11 @@ import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 import org.apache.commons.math3.distribution.TDistribution;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.math.RoundingMode;
 import java.util.HashMap;
 
 import miralib.data.DataSlice2D;
-import miralib.data.Value2D;
 import miralib.data.Variable;
 import miralib.math.Numbers;
 import miralib.utils.Project;
@@ -47,7 +46,7 @@ public class Similarity {
 	      criticalValues.put(area,  cval);
 	    } 
 	    
-	    int count = slice.values.size();
+	    int count = slice.size;
 	    int[] res = BinOptimizer.calculate(slice, prefs.binAlgorithm);
 	    int binx = res[0];
 	    int biny = res[1];
@@ -127,7 +126,7 @@ public class Similarity {
       criticalValues.put(area,  cval);
     } 
     
-    int count = slice.values.size();
+    int count = slice.size;
     int[] res = BinOptimizer.calculate(slice, prefs.binAlgorithm);
     int binx = res[0];
     int biny = res[1];
@@ -222,15 +221,9 @@ public class Similarity {
   }
   
   static protected boolean spearmanTest(DataSlice2D slice, double pval, int numTail) {
-	  ArrayList<Value2D> items = slice.values;
-	  int size = items.size();
-	  double [] v1 = new double[size];
-	  double [] v2 = new double[size];
-	  for(int i = 0; i < size; ++i)
-	  {
-		  v1[i] = items.get(i).x;
-		  v2[i] = items.get(i).y;
-	  }
+	  int size = slice.size;
+	  double [] v1 = Arrays.copyOf(slice.x, size);
+	  double [] v2 = Arrays.copyOf(slice.y, size);
 	    try {
 	    	Double s = new SpearmansCorrelation().correlation(v1,v2);
 	  	  double t = s * Math.sqrt((size - 2) / (1 - s * s));
@@ -245,15 +238,9 @@ public class Similarity {
   }
 
   static protected boolean pearsonTest(DataSlice2D slice, double pval, int numTail) {
-	  ArrayList<Value2D> items = slice.values;
-	  int size = items.size();
-	  double [] v1 = new double[size];
-	  double [] v2 = new double[size];
-	  for(int i = 0; i < size; ++i)
-	  {
-		  v1[i] = items.get(i).x;
-		  v2[i] = items.get(i).y;
-	  }
+	  int size = slice.size;
+	  double [] v1 = Arrays.copyOf(slice.x, size);
+	  double [] v2 = Arrays.copyOf(slice.y, size);
 	  double s = new PearsonsCorrelation().correlation(v1,v2);
 	  double t = s * Math.sqrt((size - 2) / (1 - s * s));
 	  double p = 1 - new TDistribution(size - 1).cumulativeProbability(t);
@@ -38,6 +38,10 @@ public class Project {
   final static public int SIMILARITY = 0;
   final static public int PVALUE     = 1;  
   
+  // Storage of the data columns
+  final static public int HEAP    = 0;
+  final static public int OFFHEAP = 1;
+  
   protected static final Set<String> dataExtensions = 
       new HashSet<String>(Arrays.asList(new String[] { "csv", "tsv", "ods" }));
   
@@ -50,6 +54,7 @@ public class Project {
   public String grpsFile;
   public String codeFile;
   public String binFile;
+  public int dataStorage;
   
   public int pValue;
   public int missThreshold;  
@@ -98,6 +103,8 @@ public class Project {
       grpsFile = settings.get("data.groups", "");
       codeFile = settings.get("data.codebook", "");
       binFile = settings.get("data.binary", "");
+      dataStorage = Project.stringToStorage(settings.get("data.storage", 
+                    Project.storageToString(HEAP)));
 
       missString = settings.get("missing.string", prefs.missingString);      
       missThreshold = Project.stringToMissing(settings.get("missing.threshold", 
@@ -125,6 +132,7 @@ public class Project {
       grpsFile = "";
       codeFile = "";
       binFile = "";
+      dataStorage = HEAP;
       
       for (File f: prjFiles) {
         String name = f.getName();
@@ -185,6 +193,7 @@ public class Project {
     this.grpsFile = that.grpsFile;
     this.codeFile = that.codeFile;
     this.binFile = that.binFile;
+    this.dataStorage = that.dataStorage;
         
     this.missString = that.missString;  
     this.missThreshold = that.missThreshold;
@@ -253,6 +262,7 @@ public class Project {
         settings.set("data.groups", grpsFile);
         settings.set("data.codebook", codeFile);      
         settings.set("data.binary", binFile);
+        settings.set("data.storage", storageToString(dataStorage));
                 
         settings.set("missing.string", missString);            
         settings.set("missing.threshold", missingToString(missThreshold));        
@@ -375,6 +385,33 @@ public class Project {
     return "unsupported";    
   }  
     
+  static public int stringToStorage(String name) {
+    name = name.toUpperCase();
+    if (name.equals("HEAP")) {
+      return HEAP;
+    } else if (name.equals("OFFHEAP")) {
+      return OFFHEAP;
+    }
+    String err = "Unsupported storage constant: " + name;
+    Log.error(err, new RuntimeException(err));
+    return -1;
+  }
+  
+  static public String storageToString(int storage) {
+    if (storage == HEAP) {        
+      return "HEAP";
+    } else if (storage == OFFHEAP) {
+      return "OFFHEAP";
+    }
+    String err = "Unsupported storage constant: " + storage;
+    Log.error(err, new RuntimeException(err));
+    return "unsupported";    
+  }  
+  
+  public boolean offHeap() {
+    return dataStorage == OFFHEAP;
+  }
+    
   public float pvalue() {
     if (pValue == P0_001) return 0.001f;
     else if (pValue == P0_005) return 0.005f;